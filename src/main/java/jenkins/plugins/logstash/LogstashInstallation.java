@@ -33,10 +33,16 @@ import hudson.util.FormValidation;
 import java.util.List;
 
 import jenkins.model.Jenkins;
+import jenkins.plugins.logstash.persistence.ActiveMqDao;
+import jenkins.plugins.logstash.persistence.IndexerOptions;
 import jenkins.plugins.logstash.persistence.LogstashIndexerDao.IndexerType;
+import jenkins.plugins.logstash.persistence.RabbitMqDao;
+import jenkins.plugins.logstash.persistence.RedisDao;
+import jenkins.plugins.logstash.persistence.SyslogDao;
 import net.sf.json.JSONObject;
 
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
@@ -67,12 +73,108 @@ public class LogstashInstallation extends ToolInstallation {
     public String username;
     public String password;
     public String key;
+    public Integer batchSize = 1;
+    public boolean installTemplate = true;
+    public Integer minBulkSize = 100;
+    public Integer maxBulkSize = 5000;
+    public Integer bulkTargetLatency = 1000;
+    public RedisDao.Topology redisTopology = RedisDao.Topology.STANDALONE;
+    public String redisMasterName;
+    public RedisDao.DataType redisDataType = RedisDao.DataType.LIST;
+    public Integer redisStreamMaxLength = 1000000;
+    public Integer redisHighWatermark = 0;
+    public Integer redisLowWatermark = 0;
+    public Integer redisMaxTotal = 8;
+    public Integer redisMinIdle = 0;
+    public boolean redisTestOnBorrow = false;
+    public Integer redisIdleTimeout = 60;
+    public boolean rabbitPublisherConfirms = true;
+    public Integer rabbitMaxOutstandingConfirms = 1000;
+    public String rabbitExchange;
+    public Integer rabbitShards = 1;
+    public Integer rabbitBufferSize = 10000;
+    public RabbitMqDao.MessageFormat rabbitMessageFormat = RabbitMqDao.MessageFormat.SINGLE;
+    public boolean rabbitCompression = false;
+    public boolean activeMqPersistent = true;
+    public boolean activeMqAsyncSend = false;
+    public Integer activeMqProducerWindowSize = 1048576;
+    public ActiveMqDao.DestinationType activeMqDestinationType = ActiveMqDao.DestinationType.TOPIC;
+    public boolean activeMqTransacted = false;
+    public boolean activeMqBytesMessage = false;
+    public boolean activeMqBatchMessages = false;
+    public boolean activeMqCompression = false;
+    public SyslogDao.Transport syslogTransport = SyslogDao.Transport.UDP;
+    public Integer syslogMaxMessageSize = 8192;
 
     public Descriptor() {
       super();
       load();
     }
 
+    public IndexerOptions getIndexerOptions() {
+      IndexerOptions options = new IndexerOptions();
+      options.setInstallTemplate(installTemplate);
+      if (minBulkSize != null) {
+        options.setMinBulkSize(minBulkSize);
+      }
+      if (maxBulkSize != null) {
+        options.setMaxBulkSize(maxBulkSize);
+      }
+      if (bulkTargetLatency != null) {
+        options.setBulkTargetLatency(bulkTargetLatency);
+      }
+      options.setRedisTopology(redisTopology);
+      options.setRedisMasterName(redisMasterName);
+      options.setRedisDataType(redisDataType);
+      if (redisStreamMaxLength != null) {
+        options.setRedisStreamMaxLength(redisStreamMaxLength);
+      }
+      if (redisHighWatermark != null) {
+        options.setRedisHighWatermark(redisHighWatermark);
+      }
+      if (redisLowWatermark != null) {
+        options.setRedisLowWatermark(redisLowWatermark);
+      }
+      if (redisMaxTotal != null) {
+        options.setRedisMaxTotal(redisMaxTotal);
+      }
+      if (redisMinIdle != null) {
+        options.setRedisMinIdle(redisMinIdle);
+      }
+      options.setRedisTestOnBorrow(redisTestOnBorrow);
+      if (redisIdleTimeout != null) {
+        options.setRedisIdleTimeout(redisIdleTimeout);
+      }
+      options.setRabbitPublisherConfirms(rabbitPublisherConfirms);
+      if (rabbitMaxOutstandingConfirms != null) {
+        options.setRabbitMaxOutstandingConfirms(rabbitMaxOutstandingConfirms);
+      }
+      options.setRabbitExchange(rabbitExchange);
+      if (rabbitShards != null) {
+        options.setRabbitShards(rabbitShards);
+      }
+      if (rabbitBufferSize != null) {
+        options.setRabbitBufferSize(rabbitBufferSize);
+      }
+      options.setRabbitMessageFormat(rabbitMessageFormat);
+      options.setRabbitCompression(rabbitCompression);
+      options.setActiveMqPersistent(activeMqPersistent);
+      options.setActiveMqAsyncSend(activeMqAsyncSend);
+      if (activeMqProducerWindowSize != null) {
+        options.setActiveMqProducerWindowSize(activeMqProducerWindowSize);
+      }
+      options.setActiveMqDestinationType(activeMqDestinationType);
+      options.setActiveMqTransacted(activeMqTransacted);
+      options.setActiveMqBytesMessage(activeMqBytesMessage);
+      options.setActiveMqBatchMessages(activeMqBatchMessages);
+      options.setActiveMqCompression(activeMqCompression);
+      options.setSyslogTransport(syslogTransport);
+      if (syslogMaxMessageSize != null) {
+        options.setSyslogMaxMessageSize(syslogMaxMessageSize);
+      }
+      return options;
+    }
+
     @Override
     public boolean configure(StaplerRequest req, JSONObject formData) throws FormException {
       req.bindJSON(this, formData.getJSONObject("logstash"));
@@ -105,6 +207,22 @@ public class LogstashInstallation extends ToolInstallation {
       return FormValidation.ok();
     }
 
+    public FormValidation doCheckBatchSize(@QueryParameter("value") String value, @QueryParameter("type") String type,
+        @QueryParameter("minBulkSize") String minBulkSize) {
+      FormValidation result = doCheckInteger(value);
+      if (result.kind != FormValidation.Kind.OK || !IndexerType.ELASTICSEARCH.name().equals(type)) {
+        return result;
+      }
+
+      // Bulk requests never carry more events than one batch, smaller batches keep the bulk size from adapting
+      int minimum = NumberUtils.toInt(minBulkSize, new IndexerOptions().getMinBulkSize());
+      if (Integer.parseInt(value) < minimum) {
+        return FormValidation.warning(Messages.BatchSizeBelowBulkSize(minimum));
+      }
+
+      return FormValidation.ok();
+    }
+
     public FormValidation doCheckHost(@QueryParameter("value") String value) {
       if (StringUtils.isBlank(value)) {
         return FormValidation.warning(Messages.PleaseProvideHost());
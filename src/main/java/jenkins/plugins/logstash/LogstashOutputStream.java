@@ -75,5 +75,7 @@ public class LogstashOutputStream extends LineTransformationOutputStream {
   public void close() throws IOException {
     delegate.close();
     super.close();
+    // Send whatever the writer still has buffered, including a trailing line without EOL
+    logstash.flush();
   }
 }
@@ -27,6 +27,7 @@ package jenkins.plugins.logstash;
 
 import hudson.model.AbstractBuild;
 import jenkins.model.Jenkins;
+import jenkins.util.Timer;
 import jenkins.plugins.logstash.persistence.BuildData;
 import jenkins.plugins.logstash.persistence.IndexerDaoFactory;
 import jenkins.plugins.logstash.persistence.LogstashIndexerDao;
@@ -36,27 +37,41 @@ import org.apache.commons.lang.exception.ExceptionUtils;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A writer that wraps all Logstash DAOs.  Handles error reporting and per build connection state.
  * Each call to write (one line or multiple lines) sends a Logstash payload to the DAO.
  * If any write fails, writer will not attempt to send any further messages to logstash during this build.
+ * With a batch size greater than one, payloads are buffered and sent together once the batch is full,
+ * the oldest buffered payload is {@link #MAX_BATCH_AGE_MILLIS} old or {@link #flush()} is called.
+ * The age is watched by a timer, so the lines of a build that goes quiet are not held back.
  *
  * @author Rusty Gerard
  * @author Liam Newman
  * @since 1.0.5
  */
 public class LogstashWriter {
+  static final long MAX_BATCH_AGE_MILLIS = 5000;
 
   final OutputStream errorStream;
   final AbstractBuild<?, ?> build;
   final BuildData buildData;
   final String jenkinsUrl;
   final LogstashIndexerDao dao;
-  private boolean connectionBroken;
+  final int batchSize;
+  private final List<String> batch = new ArrayList<String>();
+  private long batchStartedAt;
+  private ScheduledFuture<?> batchTimer;
+  private long sequence;
+  // Also set by the timer thread
+  private volatile boolean connectionBroken;
 
   public LogstashWriter(AbstractBuild<?, ?> build, OutputStream error) {
     this.errorStream = error != null ? error : System.err;
@@ -65,9 +80,11 @@ public class LogstashWriter {
     if (this.dao == null) {
       this.jenkinsUrl = "";
       this.buildData = null;
+      this.batchSize = 1;
     } else {
       this.jenkinsUrl = getJenkinsUrl();
       this.buildData = getBuildData();
+      this.batchSize = getBatchSize();
     }
 
   }
@@ -114,6 +131,32 @@ public class LogstashWriter {
       }
 
       write(logLines);
+      flush();
+    }
+  }
+
+  /**
+   * Sends any buffered payloads to the indexer as one batch.
+   * Call will be ignored if nothing is buffered or if the connection to the indexer is broken.
+   * If write fails, errors will logged to errorStream and connectionBroken will be set to true.
+   */
+  public synchronized void flush() {
+    if (batchTimer != null) {
+      batchTimer.cancel(false);
+      batchTimer = null;
+    }
+    if (batch.isEmpty()) {
+      return;
+    }
+
+    List<String> events = new ArrayList<String>(batch);
+    batch.clear();
+    if (!isConnectionBroken()) {
+      try {
+        dao.push(events);
+      } catch (IOException e) {
+        logPushError(e);
+      }
     }
   }
 
@@ -127,7 +170,8 @@ public class LogstashWriter {
   // Method to encapsulate calls for unit-testing
   LogstashIndexerDao getDao() throws InstantiationException {
     LogstashInstallation.Descriptor descriptor = LogstashInstallation.getLogstashDescriptor();
-    return IndexerDaoFactory.getInstance(descriptor.type, descriptor.host, descriptor.port, descriptor.key, descriptor.username, descriptor.password);
+    return IndexerDaoFactory.getInstance(descriptor.type, descriptor.host, descriptor.port, descriptor.key, descriptor.username, descriptor.password,
+      descriptor.getIndexerOptions());
   }
 
   BuildData getBuildData() {
@@ -138,21 +182,52 @@ public class LogstashWriter {
     return Jenkins.getInstance().getRootUrl();
   }
 
+  int getBatchSize() {
+    Integer batchSize = LogstashInstallation.getLogstashDescriptor().batchSize;
+    return batchSize == null ? 1 : batchSize.intValue();
+  }
+
+  // Method to encapsulate calls for unit-testing
+  ScheduledExecutorService getTimer() {
+    return Timer.get();
+  }
+
   /**
    * Write a list of lines to the indexer as one Logstash payload.
    */
-  private void write(List<String> lines) {
-    JSONObject payload = dao.buildPayload(buildData, jenkinsUrl, lines);
+  private synchronized void write(List<String> lines) {
+    JSONObject payload = dao.buildPayload(buildData, jenkinsUrl, lines, sequence++);
+    if (batchSize > 1) {
+      if (batch.isEmpty()) {
+        batchStartedAt = System.currentTimeMillis();
+        batchTimer = getTimer().schedule(new Runnable() {
+          @Override
+          public void run() {
+            flush();
+          }
+        }, MAX_BATCH_AGE_MILLIS, TimeUnit.MILLISECONDS);
+      }
+      batch.add(payload.toString());
+      if (batch.size() >= batchSize || System.currentTimeMillis() - batchStartedAt >= MAX_BATCH_AGE_MILLIS) {
+        flush();
+      }
+      return;
+    }
+
     try {
       dao.push(payload.toString());
     } catch (IOException e) {
-      String msg = "[logstash-plugin]: Failed to send log data to " + dao.getIndexerType() + ":" + dao.getDescription() + ".\n" +
-        "[logstash-plugin]: No Further logs will be sent to " + dao.getDescription() + ".\n" +
-        ExceptionUtils.getStackTrace(e);
-      logErrorMessage(msg);
+      logPushError(e);
     }
   }
 
+  private void logPushError(IOException e) {
+    String msg = "[logstash-plugin]: Failed to send log data to " + dao.getIndexerType() + ":" + dao.getDescription() + ".\n" +
+      "[logstash-plugin]: No Further logs will be sent to " + dao.getDescription() + ".\n" +
+      ExceptionUtils.getStackTrace(e);
+    logErrorMessage(msg);
+  }
+
   /**
    * Construct a valid indexerDao or return null.
    * Writes errors to errorStream if dao constructor fails.
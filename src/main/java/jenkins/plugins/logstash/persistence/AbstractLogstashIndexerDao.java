@@ -24,6 +24,8 @@
 
 package jenkins.plugins.logstash.persistence;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.commons.lang.StringUtils;
@@ -37,18 +39,49 @@ import net.sf.json.JSONObject;
  * @since 1.0.0
  */
 abstract class AbstractLogstashIndexerDao implements LogstashIndexerDao {
+  static final String EVENT_ID = "event_id";
+
+  // A host with its port, parsed from a "host[:port]" entry
+  static final class Endpoint {
+    // IPv6 addresses without brackets
+    final String host;
+    final int port;
+
+    Endpoint(String host, int port) {
+      this.host = host;
+      this.port = port;
+    }
+
+    /**
+     * @return "host:port", with IPv6 addresses in brackets
+     */
+    @Override
+    public String toString() {
+      return (host.indexOf(':') < 0 ? host : "[" + host + "]") + ":" + port;
+    }
+  }
+
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
   protected final String host;
   protected final int port;
   protected final String key;
   protected final String username;
   protected final String password;
+  protected final IndexerOptions options;
 
   AbstractLogstashIndexerDao(String host, int port, String key, String username, String password) {
+    this(host, port, key, username, password, new IndexerOptions());
+  }
+
+  AbstractLogstashIndexerDao(String host, int port, String key, String username, String password, IndexerOptions options) {
     this.host = host;
     this.port = port;
     this.key = key;
     this.username = username;
     this.password = password;
+    this.options = options == null ? new IndexerOptions() : options;
 
     if (StringUtils.isBlank(host)) {
       throw new IllegalArgumentException("host name is required");
@@ -56,7 +89,7 @@ abstract class AbstractLogstashIndexerDao implements LogstashIndexerDao {
   }
 
   @Override
-  public JSONObject buildPayload(BuildData buildData, String jenkinsUrl, List<String> logLines) {
+  public JSONObject buildPayload(BuildData buildData, String jenkinsUrl, List<String> logLines, long sequence) {
     JSONObject payload = new JSONObject();
     payload.put("data", buildData.toJson());
     payload.put("message", logLines);
@@ -64,10 +97,125 @@ abstract class AbstractLogstashIndexerDao implements LogstashIndexerDao {
     payload.put("source_host", jenkinsUrl);
     payload.put("@timestamp", buildData.getTimestamp());
     payload.put("@version", 1);
+    payload.put(EVENT_ID, getEventId(jenkinsUrl, buildData.getUrl(), sequence, logLines));
 
     return payload;
   }
 
+  /**
+   * Derives an id from where the event comes from and what it says, so that an event
+   * which is sent again, by a retry or a rerun of the notifier, can be recognized as such.
+   * The lines are part of the id because the build wrapper and the notifier both number
+   * their payloads from zero.
+   *
+   * @return A 64 bit FNV-1a hash as 16 hex digits
+   */
+  static String getEventId(String jenkinsUrl, String buildUrl, long sequence, List<String> logLines) {
+    long hash = FNV_OFFSET_BASIS;
+    hash = fnv(hash, jenkinsUrl);
+    hash = fnv(hash, buildUrl);
+    hash = fnv(hash, String.valueOf(sequence));
+    for (String line : logLines) {
+      hash = fnv(hash, line);
+    }
+    return String.format("%016x", hash);
+  }
+
+  private static long fnv(long hash, String value) {
+    if (value != null) {
+      for (int i = 0; i < value.length(); i++) {
+        hash ^= value.charAt(i);
+        hash *= FNV_PRIME;
+      }
+    }
+    // Separator, so that "ab" + "c" and "a" + "bc" differ
+    hash ^= 0xff;
+    return hash * FNV_PRIME;
+  }
+
+  /**
+   * Reads a top level string field from a payload built by {@link #buildPayload} without parsing it.
+   * Searches from the end because build variables in "data" come first and may use the same names.
+   *
+   * @return The field value, or null if the payload has no such field
+   */
+  static String getPayloadField(String payload, String name) {
+    String field = "\"" + name + "\":\"";
+    int start = payload.lastIndexOf(field);
+    if (start < 0) {
+      return null;
+    }
+    start += field.length();
+    int end = payload.indexOf('"', start);
+    return end < 0 ? null : payload.substring(start, end);
+  }
+
+  /**
+   * Reads a string field of the build data from a payload built by {@link #buildPayload} without parsing it.
+   * Searches from the start because "data" comes first and the build fields precede the build variables.
+   *
+   * @return The field value, or null if the payload has no such field
+   */
+  static String getBuildField(String payload, String name) {
+    String field = "\"" + name + "\":\"";
+    int start = payload.indexOf(field);
+    if (start < 0) {
+      return null;
+    }
+    start += field.length();
+    int end = payload.indexOf('"', start);
+    return end < 0 ? null : payload.substring(start, end);
+  }
+
+  /**
+   * Parses a comma separated list of "host[:port]" entries.
+   * IPv6 addresses are given as such, which takes the default port, or in brackets followed by the port.
+   */
+  static List<Endpoint> getEndpoints(String hosts, int defaultPort) {
+    String[] entries = StringUtils.split(hosts, ", ");
+    List<Endpoint> endpoints = new ArrayList<Endpoint>(entries.length);
+    for (String entry : entries) {
+      endpoints.add(getEndpoint(entry, defaultPort));
+    }
+    return endpoints;
+  }
+
+  static Endpoint getEndpoint(String entry, int defaultPort) {
+    String entryHost = entry;
+    String entryPort = null;
+    if (entry.startsWith("[") && entry.indexOf(']') > 0) {
+      int end = entry.indexOf(']');
+      entryHost = entry.substring(1, end);
+      if (entry.startsWith(":", end + 1)) {
+        entryPort = entry.substring(end + 2);
+      }
+    } else if (entry.indexOf(':') >= 0 && entry.indexOf(':') == entry.lastIndexOf(':')) {
+      // More than one colon makes a bare IPv6 address
+      entryPort = StringUtils.substringAfter(entry, ":");
+      entryHost = StringUtils.substringBefore(entry, ":");
+    }
+    if (StringUtils.isEmpty(entryPort) || !StringUtils.isNumeric(entryPort)) {
+      return new Endpoint(entryHost, defaultPort);
+    }
+    return new Endpoint(entryHost, Integer.parseInt(entryPort));
+  }
+
+  /**
+   * Sends each event on its own. Indexers that support batching override this.
+   */
+  @Override
+  public void push(List<String> data) throws IOException {
+    for (String event : data) {
+      push(event);
+    }
+  }
+
+  /**
+   * Releases the connections this DAO holds once the factory replaced it. Does nothing by default.
+   */
+  void close() {
+  }
+
   @Override
   public String getDescription() {
     return this.host + ":" + this.port;
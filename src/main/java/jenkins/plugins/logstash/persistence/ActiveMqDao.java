@@ -25,16 +25,23 @@
 package jenkins.plugins.logstash.persistence;
 
 import java.io.IOException;
-import java.util.UUID;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
 import javax.jms.DeliveryMode;
 import javax.jms.Destination;
+import javax.jms.ExceptionListener;
 import javax.jms.JMSException;
+import javax.jms.Message;
 import javax.jms.MessageProducer;
 import javax.jms.Session;
-import javax.jms.TextMessage;
-import javax.jms.TopicConnection;
 
 import org.apache.activemq.ActiveMQConnectionFactory;
 import org.apache.commons.lang.StringUtils;
@@ -47,18 +54,54 @@ import org.apache.commons.lang.StringUtils;
  */
 public class ActiveMqDao extends AbstractLogstashIndexerDao {
 
+  /**
+   * The kind of JMS destination events are sent to.
+   *
+   * @since 1.1.2
+   */
+  public static enum DestinationType {
+    /** Every subscriber gets each event, subscribers that are down miss them unless they are durable */
+    TOPIC,
+    /** Each event goes to one consumer, so several consumers share the load, and events wait for them */
+    QUEUE
+  }
+
   private static final Logger logger = Logger.getLogger( ActiveMqDao.class.getName() );
-  
+
+  // A rolled back transaction is sent once more on another session
+  static final int TRANSACTION_ATTEMPTS = 2;
+  // Without them the failover transport blocks sends for as long as no broker can be reached
+  static final String FAILOVER_OPTIONS = "timeout=10000&maxReconnectAttempts=10";
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  // A session with its producer, used by one thread at a time
+  private static final class PooledSession {
+    final Connection connection;
+    final Session session;
+    final MessageProducer producer;
+
+    PooledSession(Connection connection, Session session, MessageProducer producer) {
+      this.connection = connection;
+      this.session = session;
+      this.producer = producer;
+    }
+  }
+
   ActiveMQConnectionFactory connectionFactory = null;
+  private final Queue<PooledSession> idleSessions = new ConcurrentLinkedQueue<PooledSession>();
+  // Shared by all threads, guarded by this
+  private Connection connection;
+  // Set once the factory replaced this DAO
+  private volatile boolean closed;
 
   //primary constructor used by indexer factory
-  public ActiveMqDao(String host, int port, String key, String username, String password) {
-    this(null, host, port, key, username, password);
+  public ActiveMqDao(String host, int port, String key, String username, String password, IndexerOptions options) {
+    this(null, host, port, key, username, password, options);
   }
 
   // Constructor for unit testing
-  ActiveMqDao(ActiveMQConnectionFactory mqConnectionFactory, String host, int port, String key, String username, String password) {
-    super(host, port, key, username, password);
+  ActiveMqDao(ActiveMQConnectionFactory mqConnectionFactory, String host, int port, String key, String username, String password, IndexerOptions options) {
+    super(host, port, key, username, password, options);
 
     if (StringUtils.isBlank(key)) {
       throw new IllegalArgumentException("JMS queue name is required");
@@ -67,61 +110,226 @@ public class ActiveMqDao extends AbstractLogstashIndexerDao {
     // The ConnectionFactory must be a singleton
     // We assume this is used as a singleton as well
     // Calling this method means the configuration has changed and the pool must be re-initialized
-    this.connectionFactory = mqConnectionFactory == null ? new ActiveMQConnectionFactory(String.format("tcp://%s:%d", host, port)): mqConnectionFactory;
+    this.connectionFactory = mqConnectionFactory == null ? new ActiveMQConnectionFactory(getBrokerUrl(host, port)): mqConnectionFactory;
     
     if (!StringUtils.isBlank(username) && !StringUtils.isBlank(password)) {
       connectionFactory.setUserName(username);
       connectionFactory.setPassword(password);
     }
 
+    // Trades durability for throughput only when asked to
+    connectionFactory.setUseAsyncSend(this.options.isActiveMqAsyncSend());
+    // The client deflates message bodies, ActiveMQ consumers inflate them transparently
+    connectionFactory.setUseCompression(this.options.isActiveMqCompression());
+    if (this.options.isActiveMqAsyncSend()) {
+      connectionFactory.setProducerWindowSize(this.options.getActiveMqProducerWindowSize());
+    }
+
+  }
+
+  /**
+   * Builds the broker URL from the host field, which holds a host name, a comma separated list of
+   * "host[:port]" entries connected to through the failover transport, or a complete broker URL.
+   * IPv6 addresses are given as such or in brackets, followed by the port.
+   * Generated failover URLs get {@link #FAILOVER_OPTIONS}, so that sends fail when no broker can be reached for a while.
+   */
+  static String getBrokerUrl(String host, int port) {
+    if (host.contains("://") || host.startsWith("failover:")) {
+      return host.trim();
+    }
+    List<String> brokers = new ArrayList<String>();
+    for (Endpoint broker : getEndpoints(host, port)) {
+      brokers.add("tcp://" + broker);
+    }
+    return brokers.size() == 1 ? brokers.get(0) : "failover:(" + StringUtils.join(brokers, ',') + ")?" + FAILOVER_OPTIONS;
   }
 
   @Override
   public void push(String data) throws IOException {
-    TopicConnection connection = null;
+    push(Collections.singletonList(data));
+  }
+
+  /**
+   * Sends the events with a pooled session of the shared connection.
+   * JMS sessions are single-threaded, so each shipper thread borrows its own and returns it afterwards.
+   * With transacted sessions the events are committed together, so the broker syncs its store once per batch,
+   * and a batch that fails is rolled back and sent again as a whole.
+   */
+  @Override
+  public void push(List<String> data) throws IOException {
+    try {
+      send(data);
+    } finally {
+      if (closed) {
+        // A build still uses this DAO after the factory replaced it, the connection is not kept
+        close();
+      }
+    }
+  }
+
+  private void send(List<String> data) throws IOException {
+    List<String> bodies = data;
+    if (options.isActiveMqBatchMessages()) {
+      // One message with an event on each line, read by the Logstash json_lines codec. Every line is terminated,
+      // otherwise the codec holds the last event back until the next message arrives
+      bodies = Collections.singletonList(StringUtils.join(data, '\n') + "\n");
+    }
+    int attempts = options.isActiveMqTransacted() ? TRANSACTION_ATTEMPTS : 1;
+    for (int attempt = 1; ; attempt++) {
+      PooledSession pooled = borrowSession();
+      try {
+        for (String body : bodies) {
+          // Create the message
+          Message message = createMessage(pooled.session, body);
+          message.setJMSType("application/json");
+          // Tell the producer to send the message
+          pooled.producer.send(message);
+        }
+        if (options.isActiveMqTransacted()) {
+          pooled.session.commit();
+        }
+        returnSession(pooled);
+        return;
+      } catch (JMSException e) {
+        // Closing a transacted session rolls back the events sent on it
+        closeSession(pooled.session);
+        if (attempt >= attempts) {
+          logger.log( Level.SEVERE, null != e.getMessage() ? e.getMessage() : e.getClass().getName());
+          throw new IOException(e);
+        }
+        logger.log( Level.WARNING, "Rolled back transaction of " + data.size() + " events, sending them again: "
+          + (null != e.getMessage() ? e.getMessage() : e.getClass().getName()));
+      }
+    }
+  }
+
+  private Message createMessage(Session session, String body) throws JMSException {
+    if (!options.isActiveMqBytesMessage()) {
+      return session.createTextMessage(body);
+    }
+    BytesMessage message = session.createBytesMessage();
+    message.writeBytes(body.getBytes(UTF_8));
+    return message;
+  }
+
+  private PooledSession borrowSession() throws IOException {
+    PooledSession pooled = idleSessions.poll();
+    if (pooled != null) {
+      return pooled;
+    }
+
+    Connection current = getConnection();
     Session session = null;
     try {
-      // Create a Connection
-      connection = connectionFactory.createTopicConnection();
-      
-      connection.start();
-      
       // Create a Session
-      session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
-      
-      // Create the destination Queue
-      Destination destination = session.createTopic(key);
-      
-      // Create the MessageProducer from the Session to the Queue
+      session = options.isActiveMqTransacted() ? current.createSession(true, Session.SESSION_TRANSACTED)
+        : current.createSession(false, Session.AUTO_ACKNOWLEDGE);
+
+      // Create the destination
+      Destination destination = options.getActiveMqDestinationType() == DestinationType.QUEUE ? session.createQueue(key) : session.createTopic(key);
+
+      // Create the MessageProducer from the Session to the destination
       MessageProducer producer = session.createProducer(destination);
-      
-      producer.setDeliveryMode(DeliveryMode.PERSISTENT);
-      
-      // Create the message
-      TextMessage message = session.createTextMessage(data);
-      message.setJMSType("application/json");
-      // Tell the producer to send the message
-      producer.send(message);
-      
-      //logger.log( Level.FINER, String.format("JMS message sent with ID [%s]", message.getJMSMessageID()));
 
+      producer.setDeliveryMode(options.isActiveMqPersistent() ? DeliveryMode.PERSISTENT : DeliveryMode.NON_PERSISTENT);
+      return new PooledSession(current, session, producer);
     } catch (JMSException e) {
       logger.log( Level.SEVERE, null != e.getMessage() ? e.getMessage() : e.getClass().getName());
+      closeSession(session);
+      // The connection is most likely broken, the next push opens a new one
+      resetConnection(current);
       throw new IOException(e);
-    }finally {
-      // Clean up
-      try {
-        if(null != session)
-          session.close();
-      } catch (JMSException e) {
-        logger.log( Level.WARNING, null != e.getMessage() ? e.getMessage() : e.getClass().getName());
+    }
+  }
+
+  private void returnSession(PooledSession pooled) {
+    synchronized (this) {
+      if (pooled.connection == connection) {
+        idleSessions.offer(pooled);
+        return;
       }
+    }
+    // The connection has been replaced since the session was borrowed
+    closeSession(pooled.session);
+  }
+
+  /**
+   * Opens and starts the connection on first use, or after the previous one failed.
+   */
+  synchronized Connection getConnection() throws IOException {
+    if (connection == null) {
+      Connection newConnection = null;
       try {
-        if(null != connection)
-          connection.close();
+        // Create a Connection
+        newConnection = connectionFactory.createConnection();
+        final Connection listened = newConnection;
+        newConnection.setExceptionListener(new ExceptionListener() {
+          @Override
+          public void onException(JMSException e) {
+            logger.log( Level.WARNING, "JMS connection failed: " + (null != e.getMessage() ? e.getMessage() : e.getClass().getName()));
+            resetConnection(listened);
+          }
+        });
+        newConnection.start();
       } catch (JMSException e) {
-        logger.log( Level.WARNING, null != e.getMessage() ? e.getMessage() : e.getClass().getName());
+        logger.log( Level.SEVERE, null != e.getMessage() ? e.getMessage() : e.getClass().getName());
+        closeConnection(newConnection);
+        throw new IOException(e);
+      }
+      connection = newConnection;
+    }
+    return connection;
+  }
+
+  /**
+   * Drops the connection and its idle sessions if it is still the current one.
+   */
+  void resetConnection(Connection failed) {
+    synchronized (this) {
+      if (connection != failed) {
+        return;
       }
+      connection = null;
+      idleSessions.clear();
+    }
+    // Closing the connection closes its sessions
+    closeConnection(failed);
+  }
+
+  /**
+   * Closes the idle sessions and the connection with its failover transport.
+   * A build that still uses this DAO gets a connection for each push.
+   */
+  @Override
+  void close() {
+    Connection current;
+    synchronized (this) {
+      closed = true;
+      current = connection;
+      connection = null;
+    }
+    PooledSession pooled;
+    while ((pooled = idleSessions.poll()) != null) {
+      closeSession(pooled.session);
+    }
+    closeConnection(current);
+  }
+
+  private void closeSession(Session session) {
+    try {
+      if(null != session)
+        session.close();
+    } catch (JMSException e) {
+      logger.log( Level.WARNING, null != e.getMessage() ? e.getMessage() : e.getClass().getName());
+    }
+  }
+
+  private void closeConnection(Connection connection) {
+    try {
+      if(null != connection)
+        connection.close();
+    } catch (JMSException e) {
+      logger.log( Level.WARNING, null != e.getMessage() ? e.getMessage() : e.getClass().getName());
     }
   }
 
@@ -0,0 +1,83 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Rusty Gerard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.logstash.persistence;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Adapts the number of events per bulk request to the load of the cluster:
+ * the size grows by a fixed step while responses arrive within the target
+ * latency and is halved when they do not or when events are rejected (AIMD).
+ *
+ * @since 1.1.2
+ */
+final class BulkSizeController {
+  private static final Logger logger = Logger.getLogger(BulkSizeController.class.getName());
+
+  final int minSize;
+  final int maxSize;
+  final long targetLatencyMillis;
+  private final int step;
+  private int size;
+
+  BulkSizeController(int minSize, int maxSize, long targetLatencyMillis) {
+    this.minSize = Math.max(1, minSize);
+    this.maxSize = Math.max(this.minSize, maxSize);
+    this.targetLatencyMillis = targetLatencyMillis;
+    step = this.minSize;
+    size = this.minSize;
+  }
+
+  synchronized int getSize() {
+    return size;
+  }
+
+  /**
+   * Records a bulk request all events of which were accepted.
+   */
+  synchronized void onSuccess(long latencyMillis) {
+    if (latencyMillis > targetLatencyMillis) {
+      decrease("latency " + latencyMillis + "ms");
+    } else if (size < maxSize) {
+      size = Math.min(maxSize, size + step);
+    }
+  }
+
+  /**
+   * Records a bulk request that was rejected in full or in part because the cluster was busy.
+   */
+  synchronized void onRejected() {
+    decrease("rejected events");
+  }
+
+  private void decrease(String reason) {
+    int previous = size;
+    size = Math.max(minSize, size / 2);
+    if (size != previous) {
+      logger.log(Level.FINE, "Reduced bulk size from {0} to {1} ({2})", new Object[] { previous, size, reason });
+    }
+  }
+}
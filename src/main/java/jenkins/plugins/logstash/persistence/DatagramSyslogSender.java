@@ -0,0 +1,148 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Rusty Gerard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.logstash.persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends syslog messages as datagrams through one connected {@link DatagramChannel}.
+ * Each thread encodes its messages into its own direct buffer, behind the encoded header
+ * that the messages of a batch share, and writes them one after the other.
+ *
+ * @since 1.1.2
+ */
+class DatagramSyslogSender implements Closeable {
+  private static final Logger logger = Logger.getLogger(DatagramSyslogSender.class.getName());
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  // The largest UDP payload over IPv4
+  static final int MAX_DATAGRAM_SIZE = 65507;
+
+  private final String host;
+  private final int port;
+  private final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+    @Override
+    protected ByteBuffer initialValue() {
+      return ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+    }
+  };
+  private final ThreadLocal<CharsetEncoder> encoders = new ThreadLocal<CharsetEncoder>() {
+    @Override
+    protected CharsetEncoder initialValue() {
+      return UTF_8.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+  };
+  // Guarded by this
+  private DatagramChannel channel;
+
+  DatagramSyslogSender(String host, int port) {
+    this.host = host;
+    this.port = port;
+  }
+
+  /**
+   * Sends each message as a datagram made of the header and the message.
+   * A message that does not fit into a datagram is dropped, cutting it off would leave invalid JSON.
+   * SyslogDao splits events so that this does not happen.
+   */
+  void send(String header, List<String> messages) throws IOException {
+    DatagramChannel current = getChannel();
+    ByteBuffer buffer = buffers.get();
+    CharsetEncoder encoder = encoders.get();
+
+    buffer.clear();
+    if (!encode(encoder, header, buffer)) {
+      throw new IOException("Syslog header does not fit into a datagram");
+    }
+    int headerEnd = buffer.position();
+    try {
+      for (String message : messages) {
+        buffer.limit(buffer.capacity()).position(headerEnd);
+        if (!encode(encoder, message, buffer)) {
+          logger.log(Level.WARNING, "Dropped syslog message of {0} characters, it does not fit into a datagram",
+            String.valueOf(message.length()));
+          continue;
+        }
+        buffer.flip();
+        current.write(buffer);
+      }
+    } catch (IOException e) {
+      // For instance the port was unreachable, start over with a new channel
+      closeChannel(current);
+      throw e;
+    }
+  }
+
+  /**
+   * @return Whether the whole text fit into the buffer
+   */
+  private static boolean encode(CharsetEncoder encoder, String text, ByteBuffer buffer) {
+    encoder.reset();
+    return !encoder.encode(CharBuffer.wrap(text), buffer, true).isOverflow() && !encoder.flush(buffer).isOverflow();
+  }
+
+  synchronized DatagramChannel getChannel() throws IOException {
+    if (channel == null) {
+      DatagramChannel newChannel = DatagramChannel.open();
+      try {
+        newChannel.connect(new InetSocketAddress(host, port));
+      } catch (IOException e) {
+        newChannel.close();
+        throw e;
+      }
+      channel = newChannel;
+    }
+    return channel;
+  }
+
+  private synchronized void closeChannel(DatagramChannel failed) {
+    if (channel == failed) {
+      channel = null;
+    }
+    try {
+      failed.close();
+    } catch (IOException e) {
+      logger.log(Level.FINE, "Could not close syslog channel", e);
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    if (channel != null) {
+      closeChannel(channel);
+    }
+  }
+}
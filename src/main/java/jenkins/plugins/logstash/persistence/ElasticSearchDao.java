@@ -27,19 +27,36 @@ package jenkins.plugins.logstash.persistence;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.exception.ExceptionUtils;
+import org.apache.http.HttpRequest;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.client.utils.URIBuilder;
 
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.PrintStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Elastic Search Data Access Object.
@@ -48,28 +65,84 @@ import java.net.URISyntaxException;
  * @since 1.0.4
  */
 public class ElasticSearchDao extends AbstractLogstashIndexerDao {
+  private static final Logger logger = Logger.getLogger(ElasticSearchDao.class.getName());
+  // Events Elasticsearch rejected for good are logged here so they can be recovered by hand
+  private static final Logger deadLetterLogger = Logger.getLogger(ElasticSearchDao.class.getName() + ".deadLetter");
+
+  static final int MAX_BULK_RETRIES = 3;
+  static final long BULK_RETRY_BACKOFF_MILLIS = 200;
+  static final long TEMPLATE_RETRY_MILLIS = 60000;
+
   final HttpClientBuilder clientBuilder;
   final URI uri;
+  final URI bulkUri;
+  final URI templateUri;
   final String auth;
+  // Index name, or wildcard pattern for dated indices, the index template applies to
+  final String indexPattern;
+  private final Object templateLock = new Object();
+  private volatile boolean templateInstalled;
+  // Guarded by templateLock
+  private long templateRetryAt;
+  // Set when the index name contains a date pattern such as "jenkins-%{+YYYY.MM.dd}"
+  final IndexNameResolver indexResolver;
+  // The mapping type of "/index/type" keys, for Elasticsearch 5 and 6; empty for typeless indices
+  final String indexType;
+  final AtomicLong deadLetterCount = new AtomicLong();
+  final BulkSizeController bulkSize;
+  // Factored for unit testing
+  long retryBackoffMillis = BULK_RETRY_BACKOFF_MILLIS;
+  long templateRetryMillis = TEMPLATE_RETRY_MILLIS;
 
   //primary constructor used by indexer factory
-  public ElasticSearchDao(String host, int port, String key, String username, String password) {
-    this(null, host, port, key, username, password);
+  public ElasticSearchDao(String host, int port, String key, String username, String password, IndexerOptions options) {
+    this(null, host, port, key, username, password, options);
   }
 
   // Factored for unit testing
-  ElasticSearchDao(HttpClientBuilder factory, String host, int port, String key, String username, String password) {
-    super(host, port, key, username, password);
+  ElasticSearchDao(HttpClientBuilder factory, String host, int port, String key, String username, String password, IndexerOptions options) {
+    super(host, port, key, username, password, options);
 
     if (StringUtils.isBlank(key)) {
       throw new IllegalArgumentException("elastic index name is required");
     }
 
+    String path = "/" + key;
+    String indexAndType = StringUtils.strip(key, "/");
+    String index = StringUtils.substringBefore(indexAndType, "/");
+    indexType = StringUtils.strip(StringUtils.substringAfter(indexAndType, "/"), "/");
+    indexPattern = index.replaceAll("%\\{[^}]*\\}", "*");
+    if (IndexNameResolver.isPattern(index)) {
+      // The index is resolved per event, only the type is fixed
+      indexResolver = new IndexNameResolver(index);
+      path = "/";
+    } else {
+      indexResolver = null;
+      if (indexType.isEmpty()) {
+        // Elasticsearch 7 and later, which has no mapping types
+        path = "/" + index + "/_doc";
+      }
+    }
+
     try {
       uri = new URIBuilder(host)
         .setPort(port)
         // Normalizer will remove extra starting slashes, but missing slash will cause annoying failures
-        .setPath("/" + key)
+        .setPath(path)
+        .build();
+      String bulkPath;
+      if (indexResolver != null) {
+        bulkPath = "/_bulk";
+      } else if (indexType.isEmpty()) {
+        bulkPath = "/" + index + "/_bulk";
+      } else {
+        bulkPath = StringUtils.removeEnd(uri.getPath(), "/") + "/_bulk";
+      }
+      bulkUri = new URIBuilder(uri)
+        .setPath(bulkPath)
+        .build();
+      templateUri = new URIBuilder(uri)
+        .setPath("/_template/" + getTemplateName())
         .build();
     } catch (URISyntaxException e) {
       throw new IllegalArgumentException("Could not create uri", e);
@@ -86,17 +159,135 @@ public class ElasticSearchDao extends AbstractLogstashIndexerDao {
     }
 
     clientBuilder = factory == null ? HttpClientBuilder.create() : factory;
+    bulkSize = new BulkSizeController(options.getMinBulkSize(), options.getMaxBulkSize(), options.getBulkTargetLatency());
   }
 
   HttpPost getHttpPost(String data) {
+    return getHttpPost(getDocumentUri(data), data);
+  }
+
+  /**
+   * Events with an id are created under that id, so that sending one twice does not index it twice.
+   */
+  URI getDocumentUri(String data) {
+    String id = getPayloadField(data, EVENT_ID);
+    if (indexResolver == null && id == null) {
+      return uri;
+    }
+
+    try {
+      URIBuilder builder = new URIBuilder(uri);
+      String path;
+      if (indexResolver == null) {
+        path = StringUtils.removeEnd(uri.getPath(), "/");
+      } else {
+        path = "/" + indexResolver.resolve(data) + "/" + (indexType.isEmpty() ? "_doc" : indexType);
+      }
+      if (id != null) {
+        path += "/" + id;
+        builder.setParameter("op_type", "create");
+      }
+      return builder.setPath(path).build();
+    } catch (URISyntaxException e) {
+      throw new IllegalArgumentException("Could not create uri", e);
+    }
+  }
+
+  HttpPost getHttpPost(URI target, String data) {
     HttpPost postRequest;
-    postRequest = new HttpPost(uri);
+    postRequest = new HttpPost(target);
     StringEntity input = new StringEntity(data, ContentType.APPLICATION_JSON);
     postRequest.setEntity(input);
+    addAuthorization(postRequest);
+    return postRequest;
+  }
+
+  private void addAuthorization(HttpRequest request) {
     if (auth != null) {
-      postRequest.addHeader("Authorization", "Basic " + auth);
+      request.addHeader("Authorization", "Basic " + auth);
+    }
+  }
+
+  private String getTemplateName() {
+    String name = StringUtils.strip(indexPattern.replace("*", "").toLowerCase(), "-_.");
+    return StringUtils.isEmpty(name) ? "logstash-plugin" : "logstash-plugin-" + name;
+  }
+
+  /**
+   * The index template keeps the mapping of Jenkins events cheap: build variables are keywords, which are
+   * not analyzed, the console text needs no norms and indices refresh less often than the Elasticsearch default.
+   * With a type in the key the template has the layout of Elasticsearch 5 and 6, otherwise the typeless one
+   * of Elasticsearch 7 and later.
+   */
+  String getTemplate() {
+    // Longer values are not indexed, Lucene rejects terms over 32766 bytes
+    JSONObject keyword = new JSONObject().element("type", "keyword").element("ignore_above", 8191);
+    JSONObject buildVariables = new JSONObject().element("path_match", "data.buildVariables.*").element("mapping", keyword);
+    JSONObject message = new JSONObject().element("type", "text").element("norms", false);
+    JSONObject mapping = new JSONObject()
+      .element("dynamic_templates", new JSONArray().element(new JSONObject().element("build_variables", buildVariables)))
+      .element("properties", new JSONObject().element("message", message));
+
+    JSONObject template = new JSONObject();
+    if (indexType.isEmpty()) {
+      template.element("index_patterns", new JSONArray().element(indexPattern));
+    } else {
+      template.element("template", indexPattern);
+    }
+    return template
+      .element("order", 0)
+      .element("settings", new JSONObject().element("index", new JSONObject().element("refresh_interval", "5s")))
+      .element("mappings", indexType.isEmpty() ? mapping : new JSONObject().element(indexType, mapping))
+      .toString();
+  }
+
+  /**
+   * Installs the index template before the first event is sent. Threads pushing meanwhile wait for it,
+   * so that no index is created without the template.
+   * Events are sent even if the template can not be installed, for example for lack of privileges;
+   * the installation is tried again with a push at least {@link #TEMPLATE_RETRY_MILLIS} later.
+   */
+  void installTemplate(CloseableHttpClient httpClient) {
+    if (!options.isInstallTemplate() || templateInstalled) {
+      return;
+    }
+
+    synchronized (templateLock) {
+      if (!templateInstalled && System.currentTimeMillis() >= templateRetryAt) {
+        templateInstalled = putTemplate(httpClient);
+        if (!templateInstalled) {
+          templateRetryAt = System.currentTimeMillis() + templateRetryMillis;
+        }
+      }
+    }
+  }
+
+  private boolean putTemplate(CloseableHttpClient httpClient) {
+    CloseableHttpResponse response = null;
+    try {
+      HttpPut put = new HttpPut(templateUri);
+      put.setEntity(new StringEntity(getTemplate(), ContentType.APPLICATION_JSON));
+      addAuthorization(put);
+      response = httpClient.execute(put);
+
+      int statusCode = response.getStatusLine().getStatusCode();
+      if (statusCode >= 200 && statusCode < 300) {
+        return true;
+      }
+      logger.log(Level.WARNING, "Could not install index template.\n" + getErrorMessage(templateUri, response));
+      return false;
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Could not install index template", e);
+      return false;
+    } finally {
+      if (response != null) {
+        try {
+          response.close();
+        } catch (IOException e) {
+          logger.log(Level.FINE, "Could not close response", e);
+        }
+      }
     }
-    return postRequest;
   }
 
   @Override
@@ -107,10 +298,13 @@ public class ElasticSearchDao extends AbstractLogstashIndexerDao {
 
     try {
       httpClient = clientBuilder.build();
+      installTemplate(httpClient);
       response = httpClient.execute(post);
 
-      if (response.getStatusLine().getStatusCode() != 201) {
-        throw new IOException(this.getErrorMessage(response));
+      // 409: an event with the same id was indexed by an earlier attempt
+      int statusCode = response.getStatusLine().getStatusCode();
+      if (statusCode != 201 && statusCode != 409) {
+        throw new IOException(this.getErrorMessage(post.getURI(), response));
       }
     } finally {
       if (response != null) {
@@ -122,7 +316,247 @@ public class ElasticSearchDao extends AbstractLogstashIndexerDao {
     }
   }
 
-  private String getErrorMessage(CloseableHttpResponse response) {
+  /**
+   * Sends the events through the _bulk API, in requests no larger than the current bulk size.
+   * Items Elasticsearch rejects because it is overloaded are sent again on their own with
+   * exponential backoff, items it will never accept (mapping conflicts and the like) and items
+   * still rejected after the last retry are written to the dead letter log.
+   */
+  @Override
+  public void push(List<String> data) throws IOException {
+    if (data.isEmpty()) {
+      return;
+    }
+
+    CloseableHttpClient httpClient = null;
+    try {
+      httpClient = clientBuilder.build();
+      installTemplate(httpClient);
+
+      int from = 0;
+      while (from < data.size()) {
+        int to = Math.min(data.size(), from + bulkSize.getSize());
+        pushWithRetries(httpClient, data.subList(from, to));
+        from = to;
+      }
+    } finally {
+      if (httpClient != null) {
+        httpClient.close();
+      }
+    }
+  }
+
+  private void pushWithRetries(CloseableHttpClient httpClient, List<String> data) throws IOException {
+    List<String> pending = data;
+    long backoff = retryBackoffMillis;
+    for (int attempt = 0; !pending.isEmpty(); attempt++) {
+      if (attempt > 0) {
+        sleep(backoff);
+        backoff *= 2;
+      }
+      pending = pushBulk(httpClient, pending, attempt >= MAX_BULK_RETRIES);
+    }
+  }
+
+  /**
+   * @return The number of events dropped because Elasticsearch would not index them.
+   */
+  public long getDeadLetterCount() {
+    return deadLetterCount.get();
+  }
+
+  /**
+   * @return The number of events currently sent per bulk request.
+   */
+  public int getBulkSize() {
+    return bulkSize.getSize();
+  }
+
+  String getBulkBody(List<String> data) {
+    StringBuilder body = new StringBuilder();
+    for (String event : data) {
+      appendBulkAction(body, event);
+      body.append('\n').append(event).append('\n');
+    }
+    return body.toString();
+  }
+
+  private void appendBulkAction(StringBuilder body, String event) {
+    String id = getPayloadField(event, EVENT_ID);
+    body.append(id == null ? "{\"index\":{" : "{\"create\":{");
+
+    String separator = "";
+    if (indexResolver != null) {
+      body.append("\"_index\":\"").append(indexResolver.resolve(event)).append('"');
+      if (!indexType.isEmpty()) {
+        body.append(",\"_type\":\"").append(indexType).append('"');
+      }
+      separator = ",";
+    }
+    if (id != null) {
+      body.append(separator).append("\"_id\":\"").append(id).append('"');
+    }
+    body.append("}}");
+  }
+
+  /**
+   * Sends one bulk request.
+   *
+   * @return The events that should be sent again, never null
+   */
+  private List<String> pushBulk(CloseableHttpClient httpClient, List<String> data, boolean lastAttempt) throws IOException {
+    CloseableHttpResponse response = null;
+    try {
+      long start = System.nanoTime();
+      response = httpClient.execute(getHttpPost(bulkUri, getBulkBody(data)));
+      long latencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+      int statusCode = response.getStatusLine().getStatusCode();
+      if (isRetryable(statusCode)) {
+        bulkSize.onRejected();
+        return lastAttempt ? giveUp(data) : data;
+      }
+      if (statusCode != 200) {
+        throw new IOException(this.getErrorMessage(bulkUri, response));
+      }
+
+      List<String> retry = parseBulkResponse(response, data);
+      if (retry.isEmpty()) {
+        bulkSize.onSuccess(latencyMillis);
+        return retry;
+      }
+
+      bulkSize.onRejected();
+      return lastAttempt ? giveUp(retry) : retry;
+    } finally {
+      if (response != null) {
+        response.close();
+      }
+    }
+  }
+
+  // Events are dead lettered rather than failing the push, which would stop the build's logging
+  private List<String> giveUp(List<String> events) {
+    for (String event : events) {
+      deadLetter(event, "still busy after " + MAX_BULK_RETRIES + " retries");
+    }
+    return Collections.emptyList();
+  }
+
+  /**
+   * Walks the item results of a bulk response without loading the whole document.
+   * Responses without errors are not read past the "errors" flag.
+   */
+  private List<String> parseBulkResponse(CloseableHttpResponse response, List<String> data) throws IOException {
+    List<String> retry = new ArrayList<String>();
+    JsonReader reader = new JsonReader(new InputStreamReader(response.getEntity().getContent(), "UTF-8"));
+    try {
+      reader.beginObject();
+      while (reader.hasNext()) {
+        String name = reader.nextName();
+        if ("errors".equals(name)) {
+          if (!reader.nextBoolean()) {
+            return Collections.emptyList();
+          }
+        } else if ("items".equals(name)) {
+          reader.beginArray();
+          for (int i = 0; reader.hasNext(); i++) {
+            if (i >= data.size()) {
+              throw new IOException("Bulk response lists more items than were sent: " + data.size());
+            }
+            readBulkItem(reader, data.get(i), retry);
+          }
+          reader.endArray();
+        } else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+    } finally {
+      reader.close();
+    }
+
+    return retry;
+  }
+
+  private void readBulkItem(JsonReader reader, String event, List<String> retry) throws IOException {
+    int status = 0;
+    String error = null;
+
+    reader.beginObject();
+    while (reader.hasNext()) {
+      // The action name, "index" or "create"
+      reader.nextName();
+      reader.beginObject();
+      while (reader.hasNext()) {
+        String name = reader.nextName();
+        if ("status".equals(name)) {
+          status = reader.nextInt();
+        } else if ("error".equals(name)) {
+          error = readBulkError(reader);
+        } else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+    }
+    reader.endObject();
+
+    // 409: the event was created by an earlier attempt
+    if ((status >= 200 && status < 300) || status == 409) {
+      return;
+    }
+
+    if (isRetryable(status)) {
+      retry.add(event);
+    } else {
+      deadLetter(event, "status " + status + ": " + error);
+    }
+  }
+
+  private void deadLetter(String event, String reason) {
+    deadLetterCount.incrementAndGet();
+    deadLetterLogger.log(Level.WARNING, "Elasticsearch rejected event ({0}): {1}", new Object[] { reason, event });
+  }
+
+  // Elasticsearch 1.x reports item errors as plain strings, later versions as objects
+  private String readBulkError(JsonReader reader) throws IOException {
+    if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+      return reader.nextString();
+    }
+
+    String type = null;
+    String reason = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+      if ("type".equals(name)) {
+        type = reader.nextString();
+      } else if ("reason".equals(name) && reader.peek() == JsonToken.STRING) {
+        reason = reader.nextString();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    return type + ": " + reason;
+  }
+
+  private boolean isRetryable(int statusCode) {
+    // 429 is es_rejected_execution_exception, 503 an unavailable shard
+    return statusCode == 429 || statusCode == 503;
+  }
+
+  private void sleep(long millis) throws InterruptedIOException {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting to retry bulk request");
+    }
+  }
+
+  private String getErrorMessage(URI target, CloseableHttpResponse response) {
     ByteArrayOutputStream byteStream = null;
     PrintStream stream = null;
     try {
@@ -133,7 +567,7 @@ public class ElasticSearchDao extends AbstractLogstashIndexerDao {
         stream.print("HTTP error code: ");
         stream.println(response.getStatusLine().getStatusCode());
         stream.print("URI: ");
-        stream.println(uri.toString());
+        stream.println(target.toString());
         stream.println("RESPONSE: " + response.toString());
         response.getEntity().writeTo(stream);
       } catch (IOException e) {
@@ -0,0 +1,201 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Rusty Gerard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.logstash.persistence;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Splits events that do not fit into a message of limited size into continuation events, so that
+ * receivers get several complete JSON documents instead of one they cut off.
+ * Each part carries some of the lines, its position in "event_part" and "event_parts" and the event id
+ * with the part number appended. Lines longer than a part are cut. The build data is left out of the parts
+ * when it would take more than half of each of them.
+ *
+ * @since 1.1.2
+ */
+final class EventSplitter {
+  static final String EVENT_PART = "event_part";
+  static final String EVENT_PARTS = "event_parts";
+
+  // Room kept for the part numbers, which are only known once the lines are divided
+  private static final int NUMBERING_ALLOWANCE = 64;
+  // Below this there is no sensible room left for lines
+  private static final int MIN_LINES_SIZE = 16;
+
+  private EventSplitter() {
+  }
+
+  /**
+   * @param maxSize
+   *          The maximum size of an event in UTF-8 bytes, 0 or less for no limit
+   * @return The event itself if it fits or cannot be split, otherwise its parts
+   */
+  static List<String> split(String payload, int maxSize) {
+    if (maxSize <= 0 || utf8Length(payload) <= maxSize) {
+      return Collections.singletonList(payload);
+    }
+
+    JsonObject event;
+    try {
+      JsonElement parsed = new JsonParser().parse(payload);
+      if (!parsed.isJsonObject()) {
+        return Collections.singletonList(payload);
+      }
+      event = parsed.getAsJsonObject();
+    } catch (JsonParseException e) {
+      return Collections.singletonList(payload);
+    }
+    JsonElement lines = event.get("message");
+    if (lines == null || !lines.isJsonArray()) {
+      return Collections.singletonList(payload);
+    }
+
+    // Replaced in place to keep the order of the fields
+    event.add("message", new JsonArray());
+    int room = maxSize - utf8Length(event.toString()) - NUMBERING_ALLOWANCE;
+    if (room < maxSize / 2 && event.has("data")) {
+      // The lines matter more than the build data, which the other events of the build carry as well
+      event.remove("data");
+      room = maxSize - utf8Length(event.toString()) - NUMBERING_ALLOWANCE;
+    }
+    if (room < MIN_LINES_SIZE) {
+      return Collections.singletonList(payload);
+    }
+
+    List<JsonArray> parts = divide(lines.getAsJsonArray(), room);
+    JsonElement eventId = event.get(AbstractLogstashIndexerDao.EVENT_ID);
+    List<String> events = new ArrayList<String>(parts.size());
+    for (int i = 0; i < parts.size(); i++) {
+      event.add("message", parts.get(i));
+      if (eventId != null && eventId.isJsonPrimitive()) {
+        event.addProperty(AbstractLogstashIndexerDao.EVENT_ID, eventId.getAsString() + "-" + (i + 1));
+      }
+      event.addProperty(EVENT_PART, i + 1);
+      event.addProperty(EVENT_PARTS, parts.size());
+      events.add(event.toString());
+    }
+    return events;
+  }
+
+  /**
+   * Fills parts with as many lines as fit into the room, cutting lines that are longer than a part.
+   */
+  private static List<JsonArray> divide(JsonArray lines, int room) {
+    List<JsonArray> parts = new ArrayList<JsonArray>();
+    JsonArray part = new JsonArray();
+    // The brackets
+    int used = 2;
+    for (JsonElement line : lines) {
+      String text = line.isJsonPrimitive() ? line.getAsString() : line.toString();
+      for (String piece : cut(text, room - 2)) {
+        int size = encodedLength(piece);
+        if (part.size() > 0 && used + 1 + size > room) {
+          parts.add(part);
+          part = new JsonArray();
+          used = 2;
+        }
+        used += part.size() > 0 ? 1 + size : size;
+        part.add(new JsonPrimitive(piece));
+      }
+    }
+    if (part.size() > 0 || parts.isEmpty()) {
+      parts.add(part);
+    }
+    return parts;
+  }
+
+  /**
+   * Cuts the text into pieces which take at most the given number of bytes as JSON strings, quotes included.
+   */
+  static List<String> cut(String text, int maxLength) {
+    if (encodedLength(text) <= maxLength) {
+      return Collections.singletonList(text);
+    }
+    List<String> pieces = new ArrayList<String>();
+    int start = 0;
+    int length = 2;
+    for (int i = 0; i < text.length(); i += Character.charCount(text.codePointAt(i))) {
+      int codePointLength = encodedLength(text.codePointAt(i));
+      if (length + codePointLength > maxLength && i > start) {
+        pieces.add(text.substring(start, i));
+        start = i;
+        length = 2;
+      }
+      length += codePointLength;
+    }
+    pieces.add(text.substring(start));
+    return pieces;
+  }
+
+  static int utf8Length(String text) {
+    int length = 0;
+    for (int i = 0; i < text.length(); i += Character.charCount(text.codePointAt(i))) {
+      int codePoint = text.codePointAt(i);
+      length += codePoint < 0x80 ? 1 : codePoint < 0x800 ? 2 : codePoint < 0x10000 ? 3 : 4;
+    }
+    return length;
+  }
+
+  /**
+   * @return The number of UTF-8 bytes of the text written as a JSON string by Gson, quotes included
+   */
+  static int encodedLength(String text) {
+    int length = 2;
+    for (int i = 0; i < text.length(); i += Character.charCount(text.codePointAt(i))) {
+      length += encodedLength(text.codePointAt(i));
+    }
+    return length;
+  }
+
+  private static int encodedLength(int codePoint) {
+    switch (codePoint) {
+    case '"':
+    case '\\':
+    case '\t':
+    case '\b':
+    case '\n':
+    case '\r':
+    case '\f':
+      return 2;
+    case '\u2028':
+    case '\u2029':
+      return 6;
+    default:
+      if (codePoint < 0x20) {
+        return 6;
+      }
+      return codePoint < 0x80 ? 1 : codePoint < 0x800 ? 2 : codePoint < 0x10000 ? 3 : 4;
+    }
+  }
+}
@@ -0,0 +1,259 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Rusty Gerard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.logstash.persistence;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Resolves index names that contain Logstash style date references, such as
+ * "jenkins-%{+YYYY.MM.dd}", against the timestamp of each event.
+ * Names are cached per time bucket (a day for the example above) and per event
+ * timestamp, so events that fall into an already seen bucket need no date formatting.
+ * The bucket is the finest date field of the pattern, down to milliseconds.
+ *
+ * @since 1.1.2
+ */
+final class IndexNameResolver {
+  private static final String DATE_REFERENCE_START = "%{+";
+  private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+  private static final int MAX_CACHED_TIMESTAMPS = 256;
+
+  // Calendar fields from the coarsest to the finest bucket size
+  private static final int[] BUCKET_FIELDS = {
+    Calendar.YEAR, Calendar.MONTH, Calendar.WEEK_OF_YEAR, Calendar.DAY_OF_MONTH, Calendar.HOUR_OF_DAY, Calendar.MINUTE,
+    Calendar.SECOND, Calendar.MILLISECOND
+  };
+
+  // Same format as BuildData.DATE_FORMATTER, which is not thread safe
+  private static final ThreadLocal<SimpleDateFormat> TIMESTAMP_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+    @Override
+    protected SimpleDateFormat initialValue() {
+      return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+    }
+  };
+
+  private static final class Bucket {
+    final long start;
+    final long end;
+    final String name;
+
+    Bucket(long start, long end, String name) {
+      this.start = start;
+      this.end = end;
+      this.name = name;
+    }
+  }
+
+  final String dateFormat;
+  final int bucketField;
+  private final ThreadLocal<SimpleDateFormat> formatters = new ThreadLocal<SimpleDateFormat>() {
+    @Override
+    protected SimpleDateFormat initialValue() {
+      SimpleDateFormat formatter = new SimpleDateFormat(dateFormat);
+      formatter.setTimeZone(UTC);
+      return formatter;
+    }
+  };
+  private volatile Bucket lastBucket;
+  private final Map<String, String> namesByTimestamp = Collections.synchronizedMap(
+    new LinkedHashMap<String, String>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+        return size() > MAX_CACHED_TIMESTAMPS;
+      }
+    });
+
+  IndexNameResolver(String pattern) {
+    dateFormat = toDateFormat(pattern);
+    bucketField = getBucketField(dateFormat);
+  }
+
+  static boolean isPattern(String index) {
+    return index != null && index.contains(DATE_REFERENCE_START);
+  }
+
+  /**
+   * @param event
+   *          A serialized Logstash event, not null
+   * @return The index name for the event's "@timestamp", or for the current time if it has none
+   */
+  String resolve(String event) {
+    String timestamp = AbstractLogstashIndexerDao.getPayloadField(event, "@timestamp");
+    if (timestamp == null) {
+      return resolve(System.currentTimeMillis());
+    }
+
+    String name = namesByTimestamp.get(timestamp);
+    if (name == null) {
+      name = resolve(parseTimestamp(timestamp));
+      namesByTimestamp.put(timestamp, name);
+    }
+    return name;
+  }
+
+  String resolve(long millis) {
+    Bucket bucket = lastBucket;
+    if (bucket == null || millis < bucket.start || millis >= bucket.end) {
+      bucket = newBucket(millis);
+      lastBucket = bucket;
+    }
+    return bucket.name;
+  }
+
+  private Bucket newBucket(long millis) {
+    Calendar calendar = Calendar.getInstance(UTC);
+    calendar.setTimeInMillis(millis);
+    if (isCoarserThan(Calendar.MILLISECOND)) {
+      calendar.set(Calendar.MILLISECOND, 0);
+    }
+    if (isCoarserThan(Calendar.SECOND)) {
+      calendar.set(Calendar.SECOND, 0);
+    }
+    if (isCoarserThan(Calendar.MINUTE)) {
+      calendar.set(Calendar.MINUTE, 0);
+    }
+    if (isCoarserThan(Calendar.HOUR_OF_DAY)) {
+      calendar.set(Calendar.HOUR_OF_DAY, 0);
+    }
+    if (bucketField == Calendar.WEEK_OF_YEAR) {
+      calendar.set(Calendar.DAY_OF_WEEK, calendar.getFirstDayOfWeek());
+    }
+    if (bucketField == Calendar.MONTH || bucketField == Calendar.YEAR) {
+      calendar.set(Calendar.DAY_OF_MONTH, 1);
+    }
+    if (bucketField == Calendar.YEAR) {
+      calendar.set(Calendar.MONTH, Calendar.JANUARY);
+    }
+
+    long start = calendar.getTimeInMillis();
+    calendar.add(bucketField, 1);
+    return new Bucket(start, calendar.getTimeInMillis(), formatters.get().format(start));
+  }
+
+  private boolean isCoarserThan(int field) {
+    return rank(bucketField) < rank(field);
+  }
+
+  private static long parseTimestamp(String timestamp) {
+    try {
+      return TIMESTAMP_FORMAT.get().parse(timestamp).getTime();
+    } catch (ParseException e) {
+      return System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Turns "jenkins-%{+YYYY.MM.dd}" into the SimpleDateFormat pattern "'jenkins-'yyyy.MM.dd".
+   * Logstash uses Joda-Time where "Y" is the year of era, SimpleDateFormat calls that "y".
+   */
+  private static String toDateFormat(String pattern) {
+    StringBuilder format = new StringBuilder();
+    int position = 0;
+    while (position < pattern.length()) {
+      int start = pattern.indexOf(DATE_REFERENCE_START, position);
+      int end = start < 0 ? -1 : pattern.indexOf('}', start);
+      if (start < 0 || end < 0) {
+        appendLiteral(format, pattern.substring(position));
+        break;
+      }
+      appendLiteral(format, pattern.substring(position, start));
+      format.append(pattern.substring(start + DATE_REFERENCE_START.length(), end).replace('Y', 'y'));
+      position = end + 1;
+    }
+    return format.toString();
+  }
+
+  private static void appendLiteral(StringBuilder format, String literal) {
+    if (!literal.isEmpty()) {
+      format.append('\'').append(literal.replace("'", "''")).append('\'');
+    }
+  }
+
+  private static int getBucketField(String dateFormat) {
+    int field = Calendar.YEAR;
+    boolean quoted = false;
+    for (char c : dateFormat.toCharArray()) {
+      if (c == '\'') {
+        quoted = !quoted;
+      } else if (!quoted) {
+        field = finer(field, toCalendarField(c));
+      }
+    }
+    return field;
+  }
+
+  private static int toCalendarField(char c) {
+    switch (c) {
+      case 'M':
+      case 'L':
+        return Calendar.MONTH;
+      case 'w':
+        return Calendar.WEEK_OF_YEAR;
+      case 'W':
+      case 'F':
+      case 'd':
+      case 'D':
+      case 'E':
+      case 'u':
+        return Calendar.DAY_OF_MONTH;
+      case 'H':
+      case 'k':
+      case 'K':
+      case 'h':
+        return Calendar.HOUR_OF_DAY;
+      case 'a':
+        return Calendar.HOUR_OF_DAY;
+      case 'm':
+        return Calendar.MINUTE;
+      case 's':
+        return Calendar.SECOND;
+      case 'S':
+        return Calendar.MILLISECOND;
+      default:
+        return Calendar.YEAR;
+    }
+  }
+
+  private static int finer(int a, int b) {
+    return rank(a) >= rank(b) ? a : b;
+  }
+
+  private static int rank(int field) {
+    for (int i = 0; i < BUCKET_FIELDS.length; i++) {
+      if (BUCKET_FIELDS[i] == field) {
+        return i;
+      }
+    }
+    return 0;
+  }
+}
@@ -74,19 +74,48 @@ public final class IndexerDaoFactory {
    * @return The instance of the appropriate indexer DAO, never null
    * @throws InstantiationException
    */
-  public static synchronized LogstashIndexerDao getInstance(IndexerType type, String host, Integer port, String key, String username, String password) throws InstantiationException {
+  public static LogstashIndexerDao getInstance(IndexerType type, String host, Integer port, String key, String username, String password) throws InstantiationException {
+    return getInstance(type, host, port, key, username, password, new IndexerOptions());
+  }
+
+  /**
+   * Singleton instance accessor.
+   *
+   * @param type
+   *          The type of indexer, not null
+   * @param host
+   *          The host name or IP address of the indexer, not null
+   * @param port
+   *          The port the indexer listens on
+   * @param key
+   *          The subcollection to write to in the indexer, not null
+   * @param username
+   *          The user name to authenticate with the indexer, nullable
+   * @param password
+   *          The password to authenticate with the indexer, nullable
+   * @param options
+   *          Indexer specific settings, nullable
+   * @return The instance of the appropriate indexer DAO, never null
+   * @throws InstantiationException
+   */
+  public static synchronized LogstashIndexerDao getInstance(IndexerType type, String host, Integer port, String key, String username, String password, IndexerOptions options) throws InstantiationException {
     if (!INDEXER_MAP.containsKey(type)) {
       throw new InstantiationException("[logstash-plugin]: Unknown IndexerType '" + type + "'. Did you forget to configure the plugin?");
     }
 
     // Prevent NPE
     port = (port == null ? -1 : port.intValue());
+    options = (options == null ? new IndexerOptions() : options);
 
-    if (shouldRefreshInstance(type, host, port, key, username, password)) {
+    if (shouldRefreshInstance(type, host, port, key, username, password, options)) {
       try {
         Class<?> indexerClass = INDEXER_MAP.get(type);
-        Constructor<?> constructor = indexerClass.getConstructor(String.class, int.class, String.class, String.class, String.class);
-        instance = (AbstractLogstashIndexerDao) constructor.newInstance(host, port, key, username, password);
+        Constructor<?> constructor = indexerClass.getConstructor(String.class, int.class, String.class, String.class, String.class, IndexerOptions.class);
+        AbstractLogstashIndexerDao newInstance = (AbstractLogstashIndexerDao) constructor.newInstance(host, port, key, username, password, options);
+        if (instance != null) {
+          instance.close();
+        }
+        instance = newInstance;
       } catch (NoSuchMethodException e) {
         throw new InstantiationException(ExceptionUtils.getRootCauseMessage(e));
       } catch (InvocationTargetException e) {
@@ -99,7 +128,12 @@ public final class IndexerDaoFactory {
     return instance;
   }
 
-  private static boolean shouldRefreshInstance(IndexerType type, String host, int port, String key, String username, String password) {
+  // Factored for unit testing
+  static synchronized void setInstance(AbstractLogstashIndexerDao dao) {
+    instance = dao;
+  }
+
+  private static boolean shouldRefreshInstance(IndexerType type, String host, int port, String key, String username, String password, IndexerOptions options) {
     if (instance == null) {
       return true;
     }
@@ -109,7 +143,8 @@ public final class IndexerDaoFactory {
       (instance.port == port) &&
       StringUtils.equals(instance.key, key) &&
       StringUtils.equals(instance.username, username) &&
-      StringUtils.equals(instance.password, password);
+      StringUtils.equals(instance.password, password) &&
+      instance.options.equals(options);
     return !matches;
   }
 }
@@ -0,0 +1,395 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Rusty Gerard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.logstash.persistence;
+
+import org.apache.commons.lang.builder.EqualsBuilder;
+import org.apache.commons.lang.builder.HashCodeBuilder;
+import org.apache.commons.lang.builder.ToStringBuilder;
+
+/**
+ * POJO for the indexer specific settings that go beyond host, port, key and credentials.
+ * Two option sets are equal when all their settings are, which tells
+ * {@link IndexerDaoFactory} whether the DAO singleton has to be recreated.
+ *
+ * @since 1.1.2
+ */
+public final class IndexerOptions {
+  // ELASTICSEARCH
+  private boolean installTemplate = true;
+  private int minBulkSize = 100;
+  private int maxBulkSize = 5000;
+  private long bulkTargetLatency = 1000;
+  // REDIS
+  private RedisDao.Topology redisTopology = RedisDao.Topology.STANDALONE;
+  private String redisMasterName;
+  private RedisDao.DataType redisDataType = RedisDao.DataType.LIST;
+  private long redisStreamMaxLength = 1000000;
+  private long redisHighWatermark = 0;
+  private long redisLowWatermark = 0;
+  private int redisMaxTotal = 8;
+  private int redisMinIdle = 0;
+  private boolean redisTestOnBorrow = false;
+  private long redisIdleTimeout = 60;
+  // RABBIT_MQ
+  private boolean rabbitPublisherConfirms = true;
+  private int rabbitMaxOutstandingConfirms = 1000;
+  private String rabbitExchange;
+  private int rabbitShards = 1;
+  private int rabbitBufferSize = 10000;
+  private RabbitMqDao.MessageFormat rabbitMessageFormat = RabbitMqDao.MessageFormat.SINGLE;
+  private boolean rabbitCompression = false;
+  // ACTIVE_MQ
+  private boolean activeMqPersistent = true;
+  private boolean activeMqAsyncSend = false;
+  private int activeMqProducerWindowSize = 1048576;
+  private ActiveMqDao.DestinationType activeMqDestinationType = ActiveMqDao.DestinationType.TOPIC;
+  private boolean activeMqTransacted = false;
+  private boolean activeMqBytesMessage = false;
+  private boolean activeMqBatchMessages = false;
+  private boolean activeMqCompression = false;
+  // SYSLOG
+  private SyslogDao.Transport syslogTransport = SyslogDao.Transport.UDP;
+  private int syslogMaxMessageSize = 8192;
+
+  public boolean isInstallTemplate() {
+    return installTemplate;
+  }
+
+  public void setInstallTemplate(boolean installTemplate) {
+    this.installTemplate = installTemplate;
+  }
+
+  public int getMinBulkSize() {
+    return minBulkSize;
+  }
+
+  public void setMinBulkSize(int minBulkSize) {
+    this.minBulkSize = minBulkSize;
+  }
+
+  public int getMaxBulkSize() {
+    return maxBulkSize;
+  }
+
+  public void setMaxBulkSize(int maxBulkSize) {
+    this.maxBulkSize = maxBulkSize;
+  }
+
+  /**
+   * @return The bulk request latency in milliseconds above which the bulk size is reduced
+   */
+  public long getBulkTargetLatency() {
+    return bulkTargetLatency;
+  }
+
+  public void setBulkTargetLatency(long bulkTargetLatency) {
+    this.bulkTargetLatency = bulkTargetLatency;
+  }
+
+  public RedisDao.Topology getRedisTopology() {
+    return redisTopology;
+  }
+
+  public void setRedisTopology(RedisDao.Topology redisTopology) {
+    this.redisTopology = redisTopology == null ? RedisDao.Topology.STANDALONE : redisTopology;
+  }
+
+  /**
+   * @return The name of the master set Redis Sentinel monitors
+   */
+  public String getRedisMasterName() {
+    return redisMasterName;
+  }
+
+  public void setRedisMasterName(String redisMasterName) {
+    this.redisMasterName = redisMasterName;
+  }
+
+  public RedisDao.DataType getRedisDataType() {
+    return redisDataType;
+  }
+
+  public void setRedisDataType(RedisDao.DataType redisDataType) {
+    this.redisDataType = redisDataType == null ? RedisDao.DataType.LIST : redisDataType;
+  }
+
+  /**
+   * @return The approximate number of entries a stream is trimmed to
+   */
+  public long getRedisStreamMaxLength() {
+    return redisStreamMaxLength;
+  }
+
+  public void setRedisStreamMaxLength(long redisStreamMaxLength) {
+    this.redisStreamMaxLength = redisStreamMaxLength;
+  }
+
+  /**
+   * @return The list or stream length at which events are dropped, 0 to always send them
+   */
+  public long getRedisHighWatermark() {
+    return redisHighWatermark;
+  }
+
+  public void setRedisHighWatermark(long redisHighWatermark) {
+    this.redisHighWatermark = redisHighWatermark;
+  }
+
+  /**
+   * @return The list or stream length under which events are sent again, 0 for half the high watermark
+   */
+  public long getRedisLowWatermark() {
+    return redisLowWatermark;
+  }
+
+  public void setRedisLowWatermark(long redisLowWatermark) {
+    this.redisLowWatermark = redisLowWatermark;
+  }
+
+  public int getRedisMaxTotal() {
+    return redisMaxTotal;
+  }
+
+  public void setRedisMaxTotal(int redisMaxTotal) {
+    this.redisMaxTotal = redisMaxTotal;
+  }
+
+  public int getRedisMinIdle() {
+    return redisMinIdle;
+  }
+
+  public void setRedisMinIdle(int redisMinIdle) {
+    this.redisMinIdle = redisMinIdle;
+  }
+
+  public boolean isRedisTestOnBorrow() {
+    return redisTestOnBorrow;
+  }
+
+  public void setRedisTestOnBorrow(boolean redisTestOnBorrow) {
+    this.redisTestOnBorrow = redisTestOnBorrow;
+  }
+
+  /**
+   * @return The number of seconds after which idle pooled connections are closed
+   */
+  public long getRedisIdleTimeout() {
+    return redisIdleTimeout;
+  }
+
+  public void setRedisIdleTimeout(long redisIdleTimeout) {
+    this.redisIdleTimeout = redisIdleTimeout;
+  }
+
+  public boolean isRabbitPublisherConfirms() {
+    return rabbitPublisherConfirms;
+  }
+
+  public void setRabbitPublisherConfirms(boolean rabbitPublisherConfirms) {
+    this.rabbitPublisherConfirms = rabbitPublisherConfirms;
+  }
+
+  /**
+   * @return The number of messages per channel that may wait for a publisher confirm before publishing blocks
+   */
+  public int getRabbitMaxOutstandingConfirms() {
+    return rabbitMaxOutstandingConfirms;
+  }
+
+  public void setRabbitMaxOutstandingConfirms(int rabbitMaxOutstandingConfirms) {
+    this.rabbitMaxOutstandingConfirms = rabbitMaxOutstandingConfirms;
+  }
+
+  /**
+   * @return The exchange to publish to, blank for the default exchange
+   */
+  public String getRabbitExchange() {
+    return rabbitExchange;
+  }
+
+  public void setRabbitExchange(String rabbitExchange) {
+    this.rabbitExchange = rabbitExchange;
+  }
+
+  /**
+   * @return The number of queues builds are spread over
+   */
+  public int getRabbitShards() {
+    return rabbitShards;
+  }
+
+  public void setRabbitShards(int rabbitShards) {
+    this.rabbitShards = rabbitShards;
+  }
+
+  /**
+   * @return The number of messages kept while the connection is recovered or until they are sent again
+   */
+  public int getRabbitBufferSize() {
+    return rabbitBufferSize;
+  }
+
+  public void setRabbitBufferSize(int rabbitBufferSize) {
+    this.rabbitBufferSize = rabbitBufferSize;
+  }
+
+  public RabbitMqDao.MessageFormat getRabbitMessageFormat() {
+    return rabbitMessageFormat;
+  }
+
+  public void setRabbitMessageFormat(RabbitMqDao.MessageFormat rabbitMessageFormat) {
+    this.rabbitMessageFormat = rabbitMessageFormat == null ? RabbitMqDao.MessageFormat.SINGLE : rabbitMessageFormat;
+  }
+
+  /**
+   * @return Whether messages are gzip compressed, with the content encoding set to "gzip"
+   */
+  public boolean isRabbitCompression() {
+    return rabbitCompression;
+  }
+
+  public void setRabbitCompression(boolean rabbitCompression) {
+    this.rabbitCompression = rabbitCompression;
+  }
+
+  /**
+   * @return Whether the broker stores messages before accepting them, rather than only keeping them in memory
+   */
+  public boolean isActiveMqPersistent() {
+    return activeMqPersistent;
+  }
+
+  public void setActiveMqPersistent(boolean activeMqPersistent) {
+    this.activeMqPersistent = activeMqPersistent;
+  }
+
+  /**
+   * @return Whether messages are sent without waiting for the broker to accept them
+   */
+  public boolean isActiveMqAsyncSend() {
+    return activeMqAsyncSend;
+  }
+
+  public void setActiveMqAsyncSend(boolean activeMqAsyncSend) {
+    this.activeMqAsyncSend = activeMqAsyncSend;
+  }
+
+  /**
+   * @return The number of bytes sent asynchronously that the broker may not have accepted yet
+   */
+  public int getActiveMqProducerWindowSize() {
+    return activeMqProducerWindowSize;
+  }
+
+  public void setActiveMqProducerWindowSize(int activeMqProducerWindowSize) {
+    this.activeMqProducerWindowSize = activeMqProducerWindowSize;
+  }
+
+  public ActiveMqDao.DestinationType getActiveMqDestinationType() {
+    return activeMqDestinationType;
+  }
+
+  public void setActiveMqDestinationType(ActiveMqDao.DestinationType activeMqDestinationType) {
+    this.activeMqDestinationType = activeMqDestinationType == null ? ActiveMqDao.DestinationType.TOPIC : activeMqDestinationType;
+  }
+
+  /**
+   * @return Whether the events of a batch are sent in one transaction
+   */
+  public boolean isActiveMqTransacted() {
+    return activeMqTransacted;
+  }
+
+  public void setActiveMqTransacted(boolean activeMqTransacted) {
+    this.activeMqTransacted = activeMqTransacted;
+  }
+
+  /**
+   * @return Whether events are sent as UTF-8 encoded BytesMessages rather than TextMessages
+   */
+  public boolean isActiveMqBytesMessage() {
+    return activeMqBytesMessage;
+  }
+
+  public void setActiveMqBytesMessage(boolean activeMqBytesMessage) {
+    this.activeMqBytesMessage = activeMqBytesMessage;
+  }
+
+  /**
+   * @return Whether the events of a batch are sent as one message with an event on each line
+   */
+  public boolean isActiveMqBatchMessages() {
+    return activeMqBatchMessages;
+  }
+
+  public void setActiveMqBatchMessages(boolean activeMqBatchMessages) {
+    this.activeMqBatchMessages = activeMqBatchMessages;
+  }
+
+  /**
+   * @return Whether the ActiveMQ client compresses message bodies
+   */
+  public boolean isActiveMqCompression() {
+    return activeMqCompression;
+  }
+
+  public void setActiveMqCompression(boolean activeMqCompression) {
+    this.activeMqCompression = activeMqCompression;
+  }
+
+  public SyslogDao.Transport getSyslogTransport() {
+    return syslogTransport;
+  }
+
+  public void setSyslogTransport(SyslogDao.Transport syslogTransport) {
+    this.syslogTransport = syslogTransport == null ? SyslogDao.Transport.UDP : syslogTransport;
+  }
+
+  /**
+   * @return The size in bytes syslog messages may have, larger events are split, 0 for no limit
+   */
+  public int getSyslogMaxMessageSize() {
+    return syslogMaxMessageSize;
+  }
+
+  public void setSyslogMaxMessageSize(int syslogMaxMessageSize) {
+    this.syslogMaxMessageSize = syslogMaxMessageSize;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    return EqualsBuilder.reflectionEquals(this, obj);
+  }
+
+  @Override
+  public int hashCode() {
+    return HashCodeBuilder.reflectionHashCode(this);
+  }
+
+  @Override
+  public String toString() {
+    return ToStringBuilder.reflectionToString(this);
+  }
+}
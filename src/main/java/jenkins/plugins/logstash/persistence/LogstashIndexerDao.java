@@ -58,6 +58,16 @@ public interface LogstashIndexerDao {
    */
   void push(String data) throws IOException;
 
+  /**
+   * Sends a batch of log data to the Logstash indexer.
+   *
+   * @param data
+   *          The serialized data, one entry per event, not null
+   * @throws java.io.IOException
+   *          The data is not written to the server
+   */
+  void push(List<String> data) throws IOException;
+
   /**
    * Builds a JSON payload compatible with the Logstash schema.
    *
@@ -67,7 +77,9 @@ public interface LogstashIndexerDao {
    *          The host name of the Jenkins instance, not null
    * @param logLines
    *          The log data to transmit, not null
+   * @param sequence
+   *          The position of this payload among those sent for the build, used to give the event a stable id
    * @return The formatted JSON object, never null
    */
-  JSONObject buildPayload(BuildData buildData, String jenkinsUrl, List<String> logLines);
+  JSONObject buildPayload(BuildData buildData, String jenkinsUrl, List<String> logLines, long sequence);
 }
@@ -0,0 +1,197 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Rusty Gerard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.logstash.persistence;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Sends syslog messages over a persistent TCP or TLS connection with octet-counting framing (RFC 6587, 3.4.1):
+ * each message is preceded by its length in bytes and a space, so a receiver never cuts a message at a newline.
+ * A batch is written through a buffer and flushed once. A lost connection is opened again on the next send.
+ * TLS connections verify that the certificate of the receiver matches its host name. A connection that does not
+ * take a batch within {@link #WRITE_TIMEOUT_MILLIS}, because the receiver stopped reading, is closed so that the
+ * send fails instead of blocking the build.
+ *
+ * @since 1.1.2
+ */
+class OctetCountingSyslogSender implements Closeable {
+  private static final Logger logger = Logger.getLogger(OctetCountingSyslogSender.class.getName());
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  static final int CONNECT_TIMEOUT_MILLIS = 10000;
+  static final int BUFFER_SIZE = 64 * 1024;
+  static final long WRITE_TIMEOUT_MILLIS = 30000;
+
+  // Closes connections whose writes take too long, shared by all senders
+  private static final ScheduledExecutorService WATCHDOG = createWatchdog();
+
+  private final SocketFactory socketFactory;
+  private final String host;
+  private final int port;
+  private final ScheduledExecutorService watchdog;
+  // Guarded by this
+  private Socket socket;
+  private OutputStream out;
+
+  OctetCountingSyslogSender(SocketFactory socketFactory, String host, int port) {
+    this(socketFactory, host, port, WATCHDOG);
+  }
+
+  // Factored for unit testing
+  OctetCountingSyslogSender(SocketFactory socketFactory, String host, int port, ScheduledExecutorService watchdog) {
+    this.socketFactory = socketFactory;
+    this.host = host;
+    this.port = port;
+    this.watchdog = watchdog;
+  }
+
+  private static ScheduledExecutorService createWatchdog() {
+    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "Syslog write watchdog");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    // Nearly every write completes in time, its timeout should not linger in the queue
+    executor.setRemoveOnCancelPolicy(true);
+    return executor;
+  }
+
+  static byte[] frame(String message) {
+    byte[] body = message.getBytes(UTF_8);
+    byte[] length = (body.length + " ").getBytes(UTF_8);
+    byte[] frame = new byte[length.length + body.length];
+    System.arraycopy(length, 0, frame, 0, length.length);
+    System.arraycopy(body, 0, frame, length.length, body.length);
+    return frame;
+  }
+
+  /**
+   * Sends the messages. If the connection turns out to be lost, for instance because the receiver closed it
+   * while it was idle, the messages are sent once more on a new connection.
+   */
+  synchronized void send(List<String> messages) throws IOException {
+    List<byte[]> frames = new ArrayList<byte[]>(messages.size());
+    for (String message : messages) {
+      frames.add(frame(message));
+    }
+
+    boolean reused = socket != null;
+    try {
+      write(frames);
+    } catch (IOException e) {
+      if (!reused) {
+        throw e;
+      }
+      logger.log(Level.FINE, "Syslog connection to {0}:{1} lost, reconnecting: {2}", new Object[] { host, String.valueOf(port), e.getMessage() });
+      write(frames);
+    }
+  }
+
+  private void write(List<byte[]> frames) throws IOException {
+    if (socket == null) {
+      connect();
+    }
+    // Closing the socket is the only way to abort a blocked write, which holds the lock of this sender
+    final Socket current = socket;
+    ScheduledFuture<?> writeTimeout = watchdog.schedule(new Runnable() {
+      @Override
+      public void run() {
+        logger.log(Level.WARNING, "Syslog connection to {0}:{1} did not take a batch within {2} ms, closing it",
+          new Object[] { host, String.valueOf(port), String.valueOf(WRITE_TIMEOUT_MILLIS) });
+        closeQuietly(current);
+      }
+    }, WRITE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    try {
+      for (byte[] frame : frames) {
+        out.write(frame);
+      }
+      out.flush();
+    } catch (IOException e) {
+      close();
+      throw e;
+    } finally {
+      writeTimeout.cancel(false);
+    }
+  }
+
+  private void connect() throws IOException {
+    Socket newSocket = socketFactory.createSocket();
+    try {
+      newSocket.setKeepAlive(true);
+      if (newSocket instanceof SSLSocket) {
+        // Without it any trusted certificate would do, whichever host it was issued for
+        SSLSocket sslSocket = (SSLSocket) newSocket;
+        SSLParameters parameters = sslSocket.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        sslSocket.setSSLParameters(parameters);
+      }
+      newSocket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+      out = new BufferedOutputStream(newSocket.getOutputStream(), BUFFER_SIZE);
+    } catch (IOException e) {
+      closeQuietly(newSocket);
+      throw e;
+    }
+    socket = newSocket;
+  }
+
+  @Override
+  public synchronized void close() {
+    if (socket != null) {
+      closeQuietly(socket);
+      socket = null;
+      out = null;
+    }
+  }
+
+  private static void closeQuietly(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      logger.log(Level.FINE, "Could not close syslog connection", e);
+    }
+  }
+}
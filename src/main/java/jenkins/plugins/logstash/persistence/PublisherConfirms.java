@@ -0,0 +1,142 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Rusty Gerard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.logstash.persistence;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.rabbitmq.client.ConfirmListener;
+
+/**
+ * Tracks the messages published on one channel in confirm mode until the broker confirms them.
+ * At most a fixed number of messages may be unconfirmed; publishing blocks once that many are.
+ * Nacked messages, messages left unconfirmed for too long and the unconfirmed ones of a channel that is given up
+ * are handed to the retry queue. Messages the retry queue has no room for are counted as dropped.
+ *
+ * @param <M>
+ *          The type of the tracked messages
+ *
+ * @since 1.1.2
+ */
+final class PublisherConfirms<M> implements ConfirmListener {
+  private static final class Outstanding<M> {
+    final M message;
+    final long publishedMillis;
+
+    Outstanding(M message, long publishedMillis) {
+      this.message = message;
+      this.publishedMillis = publishedMillis;
+    }
+  }
+
+  private final ConcurrentNavigableMap<Long, Outstanding<M>> outstanding = new ConcurrentSkipListMap<Long, Outstanding<M>>();
+  private final Semaphore permits;
+  private final Queue<M> retry;
+  private final AtomicLong droppedCount;
+
+  PublisherConfirms(int maxOutstanding, Queue<M> retry, AtomicLong droppedCount) {
+    permits = new Semaphore(Math.max(1, maxOutstanding));
+    this.retry = retry;
+    this.droppedCount = droppedCount;
+  }
+
+  /**
+   * Registers a message before it is published.
+   *
+   * @throws IOException
+   *           If the broker did not confirm enough earlier messages in time
+   */
+  void beforePublish(long sequenceNumber, M message, long timeoutMillis) throws IOException {
+    try {
+      if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+        throw new IOException("RabbitMQ did not confirm published messages within " + timeoutMillis + "ms");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for publisher confirms", e);
+    }
+    outstanding.put(sequenceNumber, new Outstanding<M>(message, System.currentTimeMillis()));
+  }
+
+  /**
+   * Hands the messages published longer ago than the timeout to the retry queue, the broker is not
+   * going to confirm them any more. Should it still do so, the message is delivered twice.
+   */
+  void expire(long timeoutMillis) {
+    long oldestMillis = System.currentTimeMillis() - timeoutMillis;
+    for (Map.Entry<Long, Outstanding<M>> message : outstanding.entrySet()) {
+      // Messages are published in the order of their sequence numbers
+      if (message.getValue().publishedMillis > oldestMillis) {
+        break;
+      }
+      release(message.getKey(), true);
+    }
+  }
+
+  int getOutstandingCount() {
+    return outstanding.size();
+  }
+
+  @Override
+  public void handleAck(long deliveryTag, boolean multiple) {
+    complete(deliveryTag, multiple, false);
+  }
+
+  @Override
+  public void handleNack(long deliveryTag, boolean multiple) {
+    complete(deliveryTag, multiple, true);
+  }
+
+  /**
+   * Hands all unconfirmed messages to the retry queue, for a channel that will not be used again.
+   */
+  void abandon() {
+    complete(Long.MAX_VALUE, true, true);
+  }
+
+  private void complete(long deliveryTag, boolean multiple, boolean resend) {
+    Map<Long, Outstanding<M>> confirmed = multiple ? outstanding.headMap(deliveryTag, true) : outstanding.subMap(deliveryTag, true, deliveryTag, true);
+    for (Long sequenceNumber : confirmed.keySet()) {
+      release(sequenceNumber, resend);
+    }
+  }
+
+  private void release(long sequenceNumber, boolean resend) {
+    // Removing first makes sure an ack racing with abandon() or expire() releases each permit once
+    Outstanding<M> message = outstanding.remove(sequenceNumber);
+    if (message != null) {
+      if (resend && !retry.offer(message.message)) {
+        droppedCount.incrementAndGet();
+      }
+      permits.release();
+    }
+  }
+}
@@ -24,13 +24,30 @@
 
 package jenkins.plugins.logstash.persistence;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.lang.StringUtils;
 
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Address;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.RecoveryListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import com.rabbitmq.client.impl.recovery.AutorecoveringConnection;
 
 /**
  * RabbitMQ Data Access Object.
@@ -39,16 +56,75 @@ import com.rabbitmq.client.ConnectionFactory;
  * @since 1.0.0
  */
 public class RabbitMqDao extends AbstractLogstashIndexerDao {
+  /**
+   * How events are packed into AMQP messages.
+   *
+   * @since 1.1.2
+   */
+  public static enum MessageFormat {
+    /** One message per event */
+    SINGLE,
+    /** One message per batch with an event on each line, read by the Logstash json_lines codec */
+    JSON_LINES,
+    /** One message per batch holding a JSON array of the events, read by the Logstash json codec */
+    JSON_ARRAY
+  }
+
+  static final long CONFIRM_TIMEOUT_MILLIS = 30000;
+  static final long RECOVERY_TIMEOUT_MILLIS = 60000;
+  static final AMQP.BasicProperties GZIP_PROPERTIES = new AMQP.BasicProperties.Builder().contentEncoding("gzip").build();
+
+  // A message body with the routing key of its events, worked out once when the events are packed
+  static final class Message {
+    final String routingKey;
+    final byte[] body;
+
+    Message(String routingKey, byte[] body) {
+      this.routingKey = routingKey;
+      this.body = body;
+    }
+  }
+
+  // A channel with the tracker of its publisher confirms, if enabled
+  private static final class PooledChannel {
+    final Channel channel;
+    final PublisherConfirms<Message> confirms;
+
+    PooledChannel(Channel channel, PublisherConfirms<Message> confirms) {
+      this.channel = channel;
+      this.confirms = confirms;
+    }
+  }
+
   final ConnectionFactory pool;
+  // Empty for the default exchange, which routes to the queue named by the routing key
+  final String exchange;
+  // The queue, or the queues events are spread over
+  final List<String> queues;
+  private final Queue<PooledChannel> idleChannels = new ConcurrentLinkedQueue<PooledChannel>();
+  // Messages the broker nacked or never confirmed and messages that arrived while the connection
+  // was being recovered, published ahead of the next events; kept uncompressed
+  private final Queue<Message> retryQueue;
+  final AtomicLong droppedCount = new AtomicLong();
+  final Address[] addresses;
+  // Shared by all threads, guarded by this
+  private Connection connection;
+  // When the connection was found closed, 0 while it is open; guarded by this
+  private long closedSince;
+  // Set once the factory replaced this DAO
+  private volatile boolean closed;
+  // Factored for unit testing
+  long confirmTimeoutMillis = CONFIRM_TIMEOUT_MILLIS;
+  long recoveryTimeoutMillis = RECOVERY_TIMEOUT_MILLIS;
 
   //primary constructor used by indexer factory
-  public RabbitMqDao(String host, int port, String key, String username, String password) {
-    this(null, host, port, key, username, password);
+  public RabbitMqDao(String host, int port, String key, String username, String password, IndexerOptions options) {
+    this(null, host, port, key, username, password, options);
   }
 
   // Factored for unit testing
-  RabbitMqDao(ConnectionFactory factory, String host, int port, String key, String username, String password) {
-    super(host, port, key, username, password);
+  RabbitMqDao(ConnectionFactory factory, String host, int port, String key, String username, String password, IndexerOptions options) {
+    super(host, port, key, username, password, options);
 
     if (StringUtils.isBlank(key)) {
       throw new IllegalArgumentException("rabbit queue name is required");
@@ -65,33 +141,382 @@ public class RabbitMqDao extends AbstractLogstashIndexerDao {
       pool.setPassword(password);
       pool.setUsername(username);
     }
+
+    // The connection reconnects to any of the brokers on its own and declares the queues again
+    addresses = getAddresses(host, port);
+    pool.setAutomaticRecoveryEnabled(true);
+    pool.setTopologyRecoveryEnabled(true);
+    retryQueue = new LinkedBlockingQueue<Message>(Math.max(1, this.options.getRabbitBufferSize()));
+
+    exchange = StringUtils.defaultString(this.options.getRabbitExchange()).trim();
+    int shards = this.options.getRabbitShards();
+    if (shards > 1) {
+      List<String> names = new ArrayList<String>(shards);
+      for (int i = 0; i < shards; i++) {
+        names.add(key + "." + i);
+      }
+      queues = Collections.unmodifiableList(names);
+    } else {
+      queues = Collections.singletonList(key);
+    }
+  }
+
+  /**
+   * Parses a comma separated list of "host[:port]" entries, see {@link #getEndpoints(String, int)}.
+   */
+  static Address[] getAddresses(String hosts, int defaultPort) {
+    List<Endpoint> endpoints = getEndpoints(hosts, defaultPort);
+    Address[] addresses = new Address[endpoints.size()];
+    for (int i = 0; i < addresses.length; i++) {
+      addresses[i] = new Address(endpoints.get(i).host, endpoints.get(i).port);
+    }
+    return addresses;
+  }
+
+  /**
+   * @return The number of events dropped because the buffer for events waiting to be sent again was full.
+   */
+  public long getDroppedCount() {
+    return droppedCount.get();
+  }
+
+  /**
+   * All events of a build go to the same queue, so that a consumer sees them in order.
+   *
+   * @return The routing key for the event, which is also the name of its queue
+   */
+  String getRoutingKey(String event) {
+    if (queues.size() == 1) {
+      return key;
+    }
+    String buildUrl = StringUtils.defaultString(getBuildField(event, "url"));
+    return queues.get((buildUrl.hashCode() & Integer.MAX_VALUE) % queues.size());
   }
 
   @Override
   public void push(String data) throws IOException {
-    Connection connection = null;
-    Channel channel = null;
+    push(Collections.singletonList(data));
+  }
+
+  /**
+   * Publishes the events, preceded by the messages waiting to be sent again, on a pooled channel of the shared connection.
+   * With publisher confirms the broker acknowledges messages asynchronously; publishing only waits
+   * once the configured number of messages is unconfirmed. Messages left unconfirmed for longer than
+   * {@link #CONFIRM_TIMEOUT_MILLIS} are published again.
+   * While the connection is being recovered, events are kept until it is back, for at most
+   * {@link #RECOVERY_TIMEOUT_MILLIS}. After that, or if it was closed for good, the connection is dropped
+   * and the push fails; the next one opens a new connection.
+   */
+  @Override
+  public void push(List<String> data) throws IOException {
+    try {
+      publish(data);
+    } finally {
+      if (closed) {
+        // A build still uses this DAO after the factory replaced it, the connection is not kept
+        close();
+      }
+    }
+  }
+
+  private void publish(List<String> data) throws IOException {
+    List<Message> messages = new ArrayList<Message>(data.size());
+    Message retry;
+    while ((retry = retryQueue.poll()) != null) {
+      messages.add(retry);
+    }
+    int retries = messages.size();
+    messages.addAll(pack(data));
+
+    PooledChannel pooled;
+    try {
+      if (isRecovering()) {
+        requeue(messages, 0, messages.size());
+        return;
+      }
+      pooled = borrowChannel();
+    } catch (IOException e) {
+      requeue(messages, 0, retries);
+      throw e;
+    }
+
+    if (pooled.confirms != null) {
+      // Sent again with the next push
+      pooled.confirms.expire(confirmTimeoutMillis);
+    }
+
+    // Messages before this index have been published or are tracked by the publisher confirms
+    int handedOver = 0;
+    try {
+      for (Message message : messages) {
+        if (pooled.confirms != null) {
+          pooled.confirms.beforePublish(pooled.channel.getNextPublishSeqNo(), message, confirmTimeoutMillis);
+          handedOver++;
+        }
+        if (options.isRabbitCompression()) {
+          pooled.channel.basicPublish(exchange, message.routingKey, GZIP_PROPERTIES, gzip(message.body));
+        } else {
+          pooled.channel.basicPublish(exchange, message.routingKey, null, message.body);
+        }
+        if (pooled.confirms == null) {
+          handedOver++;
+        }
+      }
+    } catch (IOException e) {
+      publishFailed(pooled, messages, handedOver, retries, e);
+      return;
+    } catch (ShutdownSignalException e) {
+      // Publishing on a channel that has been closed
+      publishFailed(pooled, messages, handedOver, retries, new IOException(e));
+      return;
+    }
+    returnChannel(pooled);
+  }
+
+  /**
+   * Packs the events into messages in the configured format.
+   * A message only holds events of one queue, the one its routing key names.
+   */
+  List<Message> pack(List<String> data) {
+    List<Message> messages = new ArrayList<Message>(data.size());
+    if (options.getRabbitMessageFormat() == MessageFormat.SINGLE) {
+      for (String event : data) {
+        messages.add(new Message(getRoutingKey(event), event.getBytes()));
+      }
+      return messages;
+    }
+
+    Map<String, List<String>> batches = new LinkedHashMap<String, List<String>>();
+    for (String event : data) {
+      String routingKey = getRoutingKey(event);
+      List<String> batch = batches.get(routingKey);
+      if (batch == null) {
+        batch = new ArrayList<String>();
+        batches.put(routingKey, batch);
+      }
+      batch.add(event);
+    }
+    for (Map.Entry<String, List<String>> batch : batches.entrySet()) {
+      if (options.getRabbitMessageFormat() == MessageFormat.JSON_ARRAY) {
+        messages.add(new Message(batch.getKey(), ("[" + StringUtils.join(batch.getValue(), ',') + "]").getBytes()));
+      } else {
+        messages.add(new Message(batch.getKey(), (StringUtils.join(batch.getValue(), '\n') + "\n").getBytes()));
+      }
+    }
+    return messages;
+  }
+
+  static byte[] gzip(byte[] body) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4 + 32);
+    GZIPOutputStream gzip = new GZIPOutputStream(out);
+    try {
+      gzip.write(body);
+    } finally {
+      gzip.close();
+    }
+    return out.toByteArray();
+  }
+
+  private void publishFailed(PooledChannel pooled, List<Message> messages, int handedOver, int retries, IOException e) throws IOException {
+    boolean recovering;
     try {
-      connection = pool.newConnection();
-      channel = connection.createChannel();
+      recovering = isRecovering();
+    } catch (IOException lost) {
+      recovering = false;
+    }
+    if (recovering) {
+      // The channel is recovered with the connection, which sends its unconfirmed messages again
+      idleChannels.offer(pooled);
+      requeue(messages, handedOver, messages.size());
+      return;
+    }
+
+    // Tracked messages are sent again by abandoning the channel
+    discardChannel(pooled);
+    requeue(messages, handedOver, retries);
+    throw e;
+  }
+
+  private void requeue(List<Message> messages, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (!retryQueue.offer(messages.get(i))) {
+        droppedCount.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * @return Whether the connection is closed and being recovered
+   * @throws IOException
+   *           If the connection was closed for good or was not recovered in time, it has then been dropped
+   */
+  private synchronized boolean isRecovering() throws IOException {
+    if (connection == null || connection.isOpen()) {
+      closedSince = 0;
+      return false;
+    }
+
+    long now = System.currentTimeMillis();
+    if (closedSince == 0) {
+      closedSince = now;
+    }
+    // Connections closed by the application are not recovered
+    ShutdownSignalException reason = connection.getCloseReason();
+    if (connection instanceof AutorecoveringConnection && (reason == null || !reason.isInitiatedByApplication())
+        && now - closedSince < recoveryTimeoutMillis) {
+      return true;
+    }
+
+    dropConnection();
+    throw new IOException("RabbitMQ connection was lost" + (reason == null ? "" : ": " + reason.getMessage()), reason);
+  }
+
+  // Guarded by this
+  private void dropConnection() {
+    Connection lost = connection;
+    connection = null;
+    closedSince = 0;
+    // Unconfirmed messages of the pooled channels are sent again on the next connection
+    PooledChannel pooled;
+    while ((pooled = idleChannels.poll()) != null) {
+      discardChannel(pooled);
+    }
+    lost.abort();
+  }
+
+  private synchronized boolean isCurrent(Connection other) {
+    return connection == other;
+  }
+
+  /**
+   * Opens the connection on first use, making sure the queue exists.
+   * Once open, the connection recovers from failures on its own.
+   */
+  synchronized Connection getConnection() throws IOException {
+    if (connection == null) {
+      final Connection newConnection = pool.newConnection(addresses);
+      try {
+        declareQueue(newConnection);
+      } catch (IOException e) {
+        finalizeConnection(newConnection);
+        throw e;
+      }
+      if (newConnection instanceof Recoverable) {
+        ((Recoverable) newConnection).addRecoveryListener(new RecoveryListener() {
+          @Override
+          public void handleRecovery(Recoverable recoverable) {
+            // A connection that was dropped while it was recovering must not stay open
+            if (!isCurrent(newConnection)) {
+              finalizeConnection(newConnection);
+            }
+          }
+        });
+      }
+      connection = newConnection;
+    }
+    return connection;
+  }
 
+  private void declareQueue(Connection connection) throws IOException {
+    Channel channel = connection.createChannel();
+
+    if (!exchange.isEmpty()) {
+      // Ensure the exchange exists
+      try {
+        channel.exchangeDeclarePassive(exchange);
+      } catch (IOException e) {
+        // The exchange does not exist and the channel has been closed
+        finalizeChannel(channel);
+
+        // Create the exchange
+        channel = connection.createChannel();
+        channel.exchangeDeclare(exchange, "direct", true);
+      }
+    }
+
+    for (String queue : queues) {
       // Ensure the queue exists
       try {
-        channel.queueDeclarePassive(key);
+        channel.queueDeclarePassive(queue);
       } catch (IOException e) {
         // The queue does not exist and the channel has been closed
         finalizeChannel(channel);
 
         // Create the queue
         channel = connection.createChannel();
-        channel.queueDeclare(key, true, false, false, null);
+        channel.queueDeclare(queue, true, false, false, null);
+      }
+      if (!exchange.isEmpty()) {
+        channel.queueBind(queue, exchange, queue);
       }
+    }
+    idleChannels.offer(pool(channel));
+  }
 
-      channel.basicPublish("", key, null, data.getBytes());
-    } finally {
-      finalizeChannel(channel);
-      finalizeConnection(connection);
+  private PooledChannel pool(Channel channel) throws IOException {
+    if (!options.isRabbitPublisherConfirms()) {
+      return new PooledChannel(channel, null);
+    }
+
+    channel.confirmSelect();
+    final PublisherConfirms<Message> confirms = new PublisherConfirms<Message>(options.getRabbitMaxOutstandingConfirms(), retryQueue, droppedCount);
+    channel.addConfirmListener(confirms);
+    if (channel instanceof Recoverable) {
+      // A recovered channel numbers its messages from the start, the broker will not confirm the earlier ones
+      ((Recoverable) channel).addRecoveryListener(new RecoveryListener() {
+        @Override
+        public void handleRecovery(Recoverable recoverable) {
+          confirms.abandon();
+        }
+      });
+    }
+    return new PooledChannel(channel, confirms);
+  }
+
+  // Channels must not be shared between threads, so every shipping thread borrows its own
+  private PooledChannel borrowChannel() throws IOException {
+    Connection current = getConnection();
+    PooledChannel pooled;
+    while ((pooled = idleChannels.poll()) != null) {
+      if (pooled.channel.isOpen()) {
+        return pooled;
+      }
+      discardChannel(pooled);
+    }
+    return pool(current.createChannel());
+  }
+
+  private void returnChannel(PooledChannel pooled) {
+    if (pooled.channel.isOpen()) {
+      idleChannels.offer(pooled);
+    } else {
+      discardChannel(pooled);
+    }
+  }
+
+  private void discardChannel(PooledChannel pooled) {
+    if (pooled.confirms != null) {
+      pooled.confirms.abandon();
+    }
+    finalizeChannel(pooled.channel);
+  }
+
+  /**
+   * Closes the pooled channels and the connection, which would otherwise keep recovering.
+   * A build that still uses this DAO gets a connection for each push.
+   */
+  @Override
+  synchronized void close() {
+    closed = true;
+    PooledChannel pooled;
+    while ((pooled = idleChannels.poll()) != null) {
+      finalizeChannel(pooled.channel);
     }
+    // Should it still be recovering, the recovery listener closes it once it is back
+    Connection current = connection;
+    connection = null;
+    closedSince = 0;
+    finalizeConnection(current);
   }
 
   @Override
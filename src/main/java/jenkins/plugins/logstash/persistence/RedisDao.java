@@ -25,14 +25,31 @@
 package jenkins.plugins.logstash.persistence;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang.StringUtils;
 
+import redis.clients.jedis.HostAndPort;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisCluster;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.JedisSentinelPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Protocol;
 import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
 import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.Pool;
 
 /**
  * Redis Data Access Object.
@@ -41,41 +58,219 @@ import redis.clients.jedis.exceptions.JedisException;
  * @since 1.0.0
  */
 public class RedisDao extends AbstractLogstashIndexerDao {
-  final JedisPool pool;
+  /**
+   * How the Redis servers are deployed.
+   *
+   * @since 1.1.2
+   */
+  public static enum Topology {
+    /** A single server, or a master whose address does not change */
+    STANDALONE,
+    /** Masters monitored by Redis Sentinel, the host field lists the sentinels */
+    SENTINEL,
+    /** Redis Cluster, the host field lists some of the cluster nodes */
+    CLUSTER
+  }
+
+  /**
+   * The Redis data structure events are written to.
+   *
+   * @since 1.1.2
+   */
+  public static enum DataType {
+    /** RPUSH to a list, read by the Logstash redis input with data_type "list" */
+    LIST,
+    /** XADD to a stream capped at about the configured length, requires Redis 5.0 */
+    STREAM,
+    /** PUBLISH to a channel, read by the Logstash redis input with data_type "channel", nothing is kept */
+    CHANNEL
+  }
+
+  private static final Logger logger = Logger.getLogger(RedisDao.class.getName());
+
+  static final int MAX_CLUSTER_REDIRECTIONS = 5;
+  static final long BACKLOG_SAMPLE_INTERVAL_MILLIS = 5000;
+  // While the backlog is above the high watermark, one in this many events is still sent
+  static final int BACKLOG_FULL_SAMPLE_RATE = 10;
+
+  // Jedis 2.6 has no XADD, so a batch is added by one script call, KEYS[1] is the stream, ARGV[1] the maximum length
+  static final String XADD_SCRIPT =
+    "for i = 2, #ARGV do redis.call('XADD', KEYS[1], 'MAXLEN', '~', ARGV[1], '*', 'event', ARGV[i]) end return #ARGV - 1";
+  static final String XADD_SCRIPT_SHA = DigestUtils.sha1Hex(XADD_SCRIPT);
+  static final String XLEN_SCRIPT = "return redis.call('XLEN', KEYS[1])";
+
+  // Null in cluster mode
+  final Pool<Jedis> pool;
+  // Null unless in cluster mode
+  final JedisCluster cluster;
+  final AtomicLong droppedCount = new AtomicLong();
+  // Events seen since the backlog reached the high watermark
+  private final AtomicLong backlogFullCount = new AtomicLong();
+  // Factored for unit testing
+  long backlogSampleIntervalMillis = BACKLOG_SAMPLE_INTERVAL_MILLIS;
+  // Races between threads only cost an extra sample
+  private volatile long lastBacklogSample;
+  private volatile boolean backlogFull;
+  private volatile long subscriberCount;
 
   //primary constructor used by indexer factory
-  public RedisDao(String host, int port, String key, String username, String password) {
-    this(null, host, port, key, username, password);
+  public RedisDao(String host, int port, String key, String username, String password, IndexerOptions options) {
+    this(null, null, host, port, key, username, password, options);
   }
 
   // Factored for unit testing
-  RedisDao(JedisPool factory, String host, int port, String key, String username, String password) {
-    super(host, port, key, username, password);
+  RedisDao(Pool<Jedis> poolFactory, JedisCluster clusterFactory, String host, int port, String key, String username, String password, IndexerOptions options) {
+    super(host, port, key, username, password, options);
 
     if (StringUtils.isBlank(key)) {
       throw new IllegalArgumentException("redis key is required");
     }
 
-    // The JedisPool must be a singleton
+    // The pools must be singletons
     // We assume this is used as a singleton as well
-    pool = factory == null ? new JedisPool(new JedisPoolConfig(), host, port) : factory;
+    // Connections are authenticated once by the pool when they are created and then reused
+    JedisPoolConfig config = getPoolConfig(this.options);
+    String auth = StringUtils.defaultIfBlank(password, null);
+    switch (this.options.getRedisTopology()) {
+      case CLUSTER:
+        if (auth != null) {
+          throw new IllegalArgumentException("redis cluster does not support passwords");
+        }
+        if (this.options.getRedisDataType() != DataType.LIST) {
+          throw new IllegalArgumentException("redis cluster only supports the list data type");
+        }
+        pool = null;
+        cluster = clusterFactory == null ? new JedisCluster(getNodes(host, port), Protocol.DEFAULT_TIMEOUT, MAX_CLUSTER_REDIRECTIONS, config) : clusterFactory;
+        break;
+      case SENTINEL:
+        if (StringUtils.isBlank(this.options.getRedisMasterName())) {
+          throw new IllegalArgumentException("redis master name is required");
+        }
+        Set<String> sentinels = new LinkedHashSet<String>();
+        for (HostAndPort sentinel : getNodes(host, port)) {
+          sentinels.add(sentinel.toString());
+        }
+        // Follows the master Sentinel reports and recreates the connections on failover
+        pool = poolFactory == null ? new JedisSentinelPool(this.options.getRedisMasterName(), sentinels, config, Protocol.DEFAULT_TIMEOUT, auth) : poolFactory;
+        cluster = null;
+        break;
+      default:
+        pool = poolFactory == null ? new JedisPool(config, host, port, Protocol.DEFAULT_TIMEOUT, auth) : poolFactory;
+        cluster = null;
+        break;
+    }
+  }
+
+  static JedisPoolConfig getPoolConfig(IndexerOptions options) {
+    JedisPoolConfig config = new JedisPoolConfig();
+    config.setMaxTotal(options.getRedisMaxTotal());
+    config.setMaxIdle(Math.max(options.getRedisMaxTotal(), options.getRedisMinIdle()));
+    config.setMinIdle(options.getRedisMinIdle());
+    config.setTestOnBorrow(options.isRedisTestOnBorrow());
+    // The soft limit keeps the minimum number of idle connections open
+    config.setMinEvictableIdleTimeMillis(-1);
+    config.setSoftMinEvictableIdleTimeMillis(TimeUnit.SECONDS.toMillis(options.getRedisIdleTimeout()));
+    return config;
   }
 
   @Override
   public void push(String data) throws IOException {
+    send(data);
+  }
+
+  /**
+   * Sends all events with one variadic RPUSH, one XADD script call or one pipeline of PUBLISH commands,
+   * so a batch costs a single round trip.
+   */
+  @Override
+  public void push(List<String> data) throws IOException {
+    if (data.isEmpty()) {
+      return;
+    }
+    send(data.toArray(new String[data.size()]));
+  }
+
+  /**
+   * Parses a comma separated list of "host[:port]" entries, see {@link #getEndpoints(String, int)}.
+   */
+  static Set<HostAndPort> getNodes(String hosts, int defaultPort) {
+    Set<HostAndPort> nodes = new LinkedHashSet<HostAndPort>();
+    for (Endpoint node : getEndpoints(hosts, defaultPort)) {
+      nodes.add(new HostAndPort(node.host, node.port));
+    }
+    return nodes;
+  }
+
+  /**
+   * Destroys the pool, which with Sentinel also ends the subscriptions to the sentinels, or closes the
+   * connections to the cluster nodes.
+   */
+  @Override
+  void close() {
+    if (cluster != null) {
+      try {
+        cluster.close();
+      } catch (JedisException e) {
+        logger.log(Level.FINE, "Could not close the redis cluster connections", e);
+      }
+    } else {
+      try {
+        pool.destroy();
+      } catch (JedisException e) {
+        logger.log(Level.FINE, "Could not destroy the redis pool", e);
+      }
+    }
+  }
+
+  /**
+   * @return The number of events dropped because the backlog in Redis was above the high watermark.
+   */
+  public long getDroppedCount() {
+    return droppedCount.get();
+  }
+
+  /**
+   * @return The number of subscribers that received the last published event, with the CHANNEL data type.
+   */
+  public long getSubscriberCount() {
+    return subscriberCount;
+  }
+
+  private void send(String... data) throws IOException {
+    if (cluster != null) {
+      try {
+        if (isBacklogSampleDue()) {
+          updateBacklog(cluster.llen(key));
+        }
+        data = sample(data);
+        if (data.length == 0) {
+          return;
+        }
+        // The cluster client sends the command to the master of the key's hash slot
+        checkLength(cluster.rpush(key, data), data.length);
+      } catch (JedisException e) {
+        throw new IOException(e);
+      }
+      return;
+    }
+
     Jedis jedis = null;
     boolean connectionBroken = false;
     try {
       jedis = pool.getResource();
-      if (!StringUtils.isBlank(password)) {
-        jedis.auth(password);
+      if (isBacklogSampleDue()) {
+        updateBacklog(getBacklog(jedis));
       }
-
-      jedis.connect();
-      long result = jedis.rpush(key, data);
-      jedis.disconnect();
-      if (result <= 0) {
-        throw new IOException("Failed to push results");
+      data = sample(data);
+      if (data.length == 0) {
+        return;
+      }
+      if (options.getRedisDataType() == DataType.STREAM) {
+        xadd(jedis, data);
+      } else if (options.getRedisDataType() == DataType.CHANNEL) {
+        publish(jedis, data);
+      } else {
+        checkLength(jedis.rpush(key, data), data.length);
       }
     } catch (JedisException e) {
       connectionBroken = (e instanceof JedisConnectionException);
@@ -91,6 +286,110 @@ public class RedisDao extends AbstractLogstashIndexerDao {
     }
   }
 
+  private boolean isBacklogSampleDue() {
+    // Channels keep no backlog
+    if (options.getRedisHighWatermark() <= 0 || options.getRedisDataType() == DataType.CHANNEL) {
+      return false;
+    }
+    long now = System.currentTimeMillis();
+    if (now - lastBacklogSample < backlogSampleIntervalMillis) {
+      return false;
+    }
+    lastBacklogSample = now;
+    return true;
+  }
+
+  private long getBacklog(Jedis jedis) {
+    if (options.getRedisDataType() == DataType.STREAM) {
+      Object length = jedis.eval(XLEN_SCRIPT, Collections.singletonList(key), Collections.<String>emptyList());
+      return length instanceof Long ? (Long) length : 0;
+    }
+    Long length = jedis.llen(key);
+    return length == null ? 0 : length;
+  }
+
+  /**
+   * Starts sampling events once the backlog reaches the high watermark and sends all of them again once it is
+   * back under the low watermark.
+   */
+  private void updateBacklog(long length) {
+    long high = options.getRedisHighWatermark();
+    long low = options.getRedisLowWatermark();
+    if (low <= 0 || low > high) {
+      low = high / 2;
+    }
+
+    if (!backlogFull && length >= high) {
+      backlogFullCount.set(0);
+      backlogFull = true;
+      logger.log(Level.WARNING, "{0} holds {1} events, sending only one in {2} events until it is under {3}",
+        new Object[] { key, length, BACKLOG_FULL_SAMPLE_RATE, low });
+    } else if (backlogFull && length < low) {
+      backlogFull = false;
+      logger.log(Level.INFO, "{0} holds {1} events, sending events again ({2} dropped so far)", new Object[] { key, length, droppedCount.get() });
+    }
+  }
+
+  /**
+   * While the backlog is full, keeps one in {@link #BACKLOG_FULL_SAMPLE_RATE} events, starting with the first,
+   * so that builds still leave a trace without filling Redis much further. The others are dropped.
+   */
+  private String[] sample(String[] data) {
+    if (!backlogFull) {
+      return data;
+    }
+    List<String> kept = new ArrayList<String>(data.length / BACKLOG_FULL_SAMPLE_RATE + 1);
+    for (String event : data) {
+      if (backlogFullCount.getAndIncrement() % BACKLOG_FULL_SAMPLE_RATE == 0) {
+        kept.add(event);
+      }
+    }
+    droppedCount.addAndGet(data.length - kept.size());
+    return kept.toArray(new String[kept.size()]);
+  }
+
+  private void xadd(Jedis jedis, String... data) throws IOException {
+    List<String> keys = Collections.singletonList(key);
+    List<String> args = new ArrayList<String>(data.length + 1);
+    args.add(Long.toString(options.getRedisStreamMaxLength()));
+    Collections.addAll(args, data);
+
+    Object added;
+    try {
+      added = jedis.evalsha(XADD_SCRIPT_SHA, keys, args);
+    } catch (JedisDataException e) {
+      // The script is not cached yet, EVAL caches it for the next batch
+      if (!StringUtils.startsWith(e.getMessage(), "NOSCRIPT")) {
+        throw e;
+      }
+      added = jedis.eval(XADD_SCRIPT, keys, args);
+    }
+    if (!Long.valueOf(data.length).equals(added)) {
+      throw new IOException("Failed to push results");
+    }
+  }
+
+  /**
+   * Publishing is fire and forget: events nobody is subscribed to are lost without an error.
+   */
+  private void publish(Jedis jedis, String... data) {
+    Pipeline pipeline = jedis.pipelined();
+    for (String event : data) {
+      pipeline.publish(key, event);
+    }
+    List<Object> receivers = pipeline.syncAndReturnAll();
+    if (!receivers.isEmpty() && receivers.get(receivers.size() - 1) instanceof Long) {
+      subscriberCount = (Long) receivers.get(receivers.size() - 1);
+    }
+  }
+
+  // RPUSH returns the length of the list, which holds at least the events just pushed
+  private void checkLength(Long length, int pushed) throws IOException {
+    if (length == null || length < pushed) {
+      throw new IOException("Failed to push results");
+    }
+  }
+
   @Override
   public IndexerType getIndexerType() {
     return IndexerType.REDIS;
@@ -4,36 +4,173 @@ import com.cloudbees.syslog.sender.UdpSyslogMessageSender;
 import com.cloudbees.syslog.Facility;
 import com.cloudbees.syslog.MessageFormat;
 import com.cloudbees.syslog.Severity;
+import com.cloudbees.syslog.SyslogMessage;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocketFactory;
 
 
 public class SyslogDao extends AbstractLogstashIndexerDao {
+  /**
+   * How messages reach the syslog server.
+   *
+   * @since 1.1.2
+   */
+  public static enum Transport {
+    /** One datagram per event, datagrams may be lost */
+    UDP,
+    /** A persistent TCP connection with octet-counting framing */
+    TCP,
+    /** Like TCP, encrypted with TLS */
+    TLS,
+    /** The same as UDP, which writes the datagrams of a batch through one NIO channel as well */
+    UDP_NIO
+  }
+
+  // Room for the syslog header and the CEE cookie in front of the event, besides the host name
+  static final int HEADER_ALLOWANCE = 64;
+  static final String CEE_COOKIE = " @cee: ";
+
+  // A sender handed in for unit testing, used by all threads with the UDP transport
   final UdpSyslogMessageSender messageSender;
+  // Used with the TCP and TLS transports
+  final OctetCountingSyslogSender streamSender;
+  // Used with the UDP_NIO transport, and with UDP unless a sender was handed in; each thread has its own buffer
+  final DatagramSyslogSender datagramSender;
+  // Set once the factory replaced this DAO
+  private volatile boolean closed;
   
-  public SyslogDao(String host, int port, String key, String username, String password) {
-    this(null, host, port, key, username, password);
+  public SyslogDao(String host, int port, String key, String username, String password, IndexerOptions options) {
+    this(null, host, port, key, username, password, options);
+  }
+
+  public SyslogDao(UdpSyslogMessageSender udpSyslogMessageSender, String host, int port, String key, String username, String password, IndexerOptions options) {
+    this(udpSyslogMessageSender, null, host, port, key, username, password, options);
   }
 
-  public SyslogDao(UdpSyslogMessageSender udpSyslogMessageSender, String host, int port, String key, String username, String password) {
-    super(host, port, key, username, password);
-    messageSender = udpSyslogMessageSender == null ? new UdpSyslogMessageSender() : udpSyslogMessageSender;
+  // Factored for unit testing
+  SyslogDao(UdpSyslogMessageSender udpSyslogMessageSender, OctetCountingSyslogSender octetCountingSyslogSender, String host, int port, String key, String username, String password, IndexerOptions options) {
+    super(host, port, key, username, password, options);
+    messageSender = udpSyslogMessageSender == null ? null : configure(udpSyslogMessageSender);
+    Transport transport = this.options.getSyslogTransport();
+    boolean datagrams = transport == Transport.UDP_NIO || (transport == Transport.UDP && messageSender == null);
+    datagramSender = datagrams ? new DatagramSyslogSender(host, port) : null;
+    if (transport == Transport.UDP || transport == Transport.UDP_NIO) {
+      streamSender = null;
+    } else if (octetCountingSyslogSender != null) {
+      streamSender = octetCountingSyslogSender;
+    } else {
+      SocketFactory socketFactory = transport == Transport.TLS ? SSLSocketFactory.getDefault() : SocketFactory.getDefault();
+      streamSender = new OctetCountingSyslogSender(socketFactory, host, port);
+    }
   }
 
   @Override
   public void push(String data) throws IOException {
-    // Making the JSON document compliant to Common Event Expression (CEE)
-    // http://www.rsyslog.com/json-elasticsearch/
-    data = " @cee: "  + data;
+    if (streamSender != null || datagramSender != null) {
+      push(Collections.singletonList(data));
+      return;
+    }
+    // Events too large for one message are sent in parts
+    for (String event : EventSplitter.split(data, getMaxEventSize())) {
+      // Making the JSON document compliant to Common Event Expression (CEE)
+      // http://www.rsyslog.com/json-elasticsearch/
+      messageSender.sendMessage(CEE_COOKIE + event);
+    }
+  }
+
+  /**
+   * Closes the connection or the datagram channel. A build that still uses this DAO opens them for each push.
+   */
+  @Override
+  void close() {
+    closed = true;
+    if (streamSender != null) {
+      streamSender.close();
+    }
+    if (datagramSender != null) {
+      datagramSender.close();
+    }
+  }
+
+  /**
+   * @return The size in bytes events may have so that their syslog messages fit into the maximum message size,
+   *         which over UDP is at most a datagram, 0 for no limit
+   */
+  int getMaxEventSize() {
+    int maxMessageSize = options.getSyslogMaxMessageSize();
+    Transport transport = options.getSyslogTransport();
+    if ((transport == Transport.UDP || transport == Transport.UDP_NIO)
+        && (maxMessageSize <= 0 || maxMessageSize > DatagramSyslogSender.MAX_DATAGRAM_SIZE)) {
+      maxMessageSize = DatagramSyslogSender.MAX_DATAGRAM_SIZE;
+    }
+    if (maxMessageSize <= 0) {
+      return 0;
+    }
+    return Math.max(1, maxMessageSize - HEADER_ALLOWANCE - EventSplitter.utf8Length(host));
+  }
+
+  private UdpSyslogMessageSender configure(UdpSyslogMessageSender sender) {
     // SYSLOG Configuration
-    messageSender.setDefaultMessageHostname(host);
-    messageSender.setDefaultAppName("jenkins:");
-    messageSender.setDefaultFacility(Facility.USER);
-    messageSender.setDefaultSeverity(Severity.INFORMATIONAL);
-    messageSender.setSyslogServerHostname(host);
-    messageSender.setSyslogServerPort(port);
-    messageSender.setMessageFormat(MessageFormat.RFC_5424);
-    // Sending the message
-    messageSender.sendMessage(data);
+    sender.setDefaultMessageHostname(host);
+    sender.setDefaultAppName("jenkins:");
+    sender.setDefaultFacility(Facility.USER);
+    sender.setDefaultSeverity(Severity.INFORMATIONAL);
+    sender.setSyslogServerHostname(host);
+    sender.setSyslogServerPort(port);
+    sender.setMessageFormat(MessageFormat.RFC_5424);
+    return sender;
+  }
+
+  /**
+   * Over TCP and TLS the events of a batch are written together and flushed once.
+   * With UDP and UDP_NIO they are written as datagrams one after the other.
+   * The events of a batch share the syslog header, which is formatted once.
+   */
+  @Override
+  public void push(List<String> data) throws IOException {
+    if (streamSender == null && datagramSender == null) {
+      super.push(data);
+      return;
+    }
+    List<String> events = new ArrayList<String>(data.size());
+    for (String event : data) {
+      events.addAll(EventSplitter.split(event, getMaxEventSize()));
+    }
+    String header = formatHeader(System.currentTimeMillis());
+    try {
+      if (datagramSender != null) {
+        datagramSender.send(header, events);
+        return;
+      }
+      List<String> messages = new ArrayList<String>(events.size());
+      for (String event : events) {
+        messages.add(header + event);
+      }
+      streamSender.send(messages);
+    } finally {
+      if (closed) {
+        // A build still uses this DAO after the factory replaced it, the connection is not kept
+        close();
+      }
+    }
+  }
+
+  /**
+   * @return The RFC 5424 header and the Common Event Expression (CEE) cookie, see push(String)
+   */
+  String formatHeader(long timestamp) {
+    SyslogMessage message = new SyslogMessage()
+      .withTimestamp(timestamp)
+      .withHostname(host)
+      .withAppName("jenkins:")
+      .withFacility(Facility.USER)
+      .withSeverity(Severity.INFORMATIONAL)
+      .withMsg(CEE_COOKIE);
+    return message.toSyslogMessage(MessageFormat.RFC_5424);
   }
 
   @Override
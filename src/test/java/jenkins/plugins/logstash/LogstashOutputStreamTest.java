@@ -104,6 +104,17 @@ public class LogstashOutputStreamTest {
     verify(mockWriter, times(3)).isConnectionBroken();
   }
 
+  @Test
+  public void closeFlushesWriter() throws Exception {
+    LogstashOutputStream los = new LogstashOutputStream(buffer, mockWriter);
+
+    // Unit under test
+    los.close();
+
+    // Verify results
+    verify(mockWriter).flush();
+  }
+
   @Test
   public void eolSuccessNoDao() throws Exception {
     when(mockWriter.isConnectionBroken()).thenReturn(true);
@@ -22,6 +22,9 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.GregorianCalendar;
 import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import static org.hamcrest.core.StringContains.containsString;
 import static org.junit.Assert.*;
@@ -35,6 +38,25 @@ public class LogstashWriterTest {
                                              final String url,
                                              final LogstashIndexerDao indexer,
                                              final BuildData data) {
+    return createLogstashWriter(testBuild, error, url, indexer, data, 1);
+  }
+
+  static LogstashWriter createLogstashWriter(final AbstractBuild<?, ?> testBuild,
+                                             OutputStream error,
+                                             final String url,
+                                             final LogstashIndexerDao indexer,
+                                             final BuildData data,
+                                             final int batchSize) {
+    return createLogstashWriter(testBuild, error, url, indexer, data, batchSize, null);
+  }
+
+  static LogstashWriter createLogstashWriter(final AbstractBuild<?, ?> testBuild,
+                                             OutputStream error,
+                                             final String url,
+                                             final LogstashIndexerDao indexer,
+                                             final BuildData data,
+                                             final int batchSize,
+                                             final ScheduledExecutorService timer) {
     return new LogstashWriter(testBuild, error) {
       @Override
       LogstashIndexerDao getDao() throws InstantiationException {
@@ -61,6 +83,17 @@ public class LogstashWriterTest {
       String getJenkinsUrl() {
         return url;
       }
+
+      @Override
+      int getBatchSize() {
+        return batchSize;
+      }
+
+      @Override
+      ScheduledExecutorService getTimer() {
+        // For testing, providing no timer means use the actual one
+        return timer == null ? super.getTimer() : timer;
+      }
     };
   }
 
@@ -72,6 +105,8 @@ public class LogstashWriterTest {
   @Mock Project mockProject;
 
   @Mock BuildData mockBuildData;
+  @Mock ScheduledExecutorService mockTimer;
+  @Mock ScheduledFuture<?> mockBatchTimer;
 
   @Captor ArgumentCaptor<List<String>> logLinesCaptor;
 
@@ -100,7 +135,7 @@ public class LogstashWriterTest {
 
     when(mockProject.getName()).thenReturn("LogstashWriterTest");
 
-    when(mockDao.buildPayload(Matchers.any(BuildData.class), Matchers.anyString(), Matchers.anyListOf(String.class)))
+    when(mockDao.buildPayload(Matchers.any(BuildData.class), Matchers.anyString(), Matchers.anyListOf(String.class), Matchers.anyLong()))
       .thenReturn(JSONObject.fromObject("{\"data\":{},\"message\":[\"test\"],\"source\":\"jenkins\",\"source_host\":\"http://my-jenkins-url\",\"@version\":1}"));
 
     Mockito.doNothing().when(mockDao).push(Matchers.anyString());
@@ -117,6 +152,8 @@ public class LogstashWriterTest {
     verifyNoMoreInteractions(mockBuildData);
     verifyNoMoreInteractions(mockTestResultAction);
     verifyNoMoreInteractions(mockProject);
+    verifyNoMoreInteractions(mockTimer);
+    verifyNoMoreInteractions(mockBatchTimer);
     errorBuffer.close();
   }
 
@@ -209,10 +246,60 @@ public class LogstashWriterTest {
     // No error output
     assertEquals("Results don't match", "", errorBuffer.toString());
 
-    verify(mockDao).buildPayload(Matchers.eq(mockBuildData), Matchers.eq("http://my-jenkins-url"), Matchers.anyListOf(String.class));
+    verify(mockDao).buildPayload(Matchers.eq(mockBuildData), Matchers.eq("http://my-jenkins-url"), Matchers.anyListOf(String.class), Matchers.eq(0L));
     verify(mockDao).push("{\"data\":{},\"message\":[\"test\"],\"source\":\"jenkins\",\"source_host\":\"http://my-jenkins-url\",\"@version\":1}");
   }
 
+  @Test
+  public void writeBatchSuccess() throws Exception {
+    LogstashWriter writer = createLogstashWriter(mockBuild, errorBuffer, "http://my-jenkins-url", mockDao, mockBuildData, 2);
+    String payload = "{\"data\":{},\"message\":[\"test\"],\"source\":\"jenkins\",\"source_host\":\"http://my-jenkins-url\",\"@version\":1}";
+    errorBuffer.reset();
+
+    // Unit under test
+    writer.write("line 1");
+    writer.write("line 2");
+    writer.write("line 3");
+    writer.flush();
+
+    // Verify results
+    // No error output
+    assertEquals("Results don't match", "", errorBuffer.toString());
+
+    verify(mockDao).buildPayload(Matchers.eq(mockBuildData), Matchers.eq("http://my-jenkins-url"), Matchers.anyListOf(String.class), Matchers.eq(0L));
+    verify(mockDao).buildPayload(Matchers.eq(mockBuildData), Matchers.eq("http://my-jenkins-url"), Matchers.anyListOf(String.class), Matchers.eq(1L));
+    verify(mockDao).buildPayload(Matchers.eq(mockBuildData), Matchers.eq("http://my-jenkins-url"), Matchers.anyListOf(String.class), Matchers.eq(2L));
+    verify(mockDao).push(Arrays.asList(payload, payload));
+    verify(mockDao).push(Arrays.asList(payload));
+  }
+
+  @Test
+  public void writeBatchFlushedByTimer() throws Exception {
+    // Initialize mocks
+    doReturn(mockBatchTimer).when(mockTimer).schedule(Matchers.any(Runnable.class), Matchers.eq(LogstashWriter.MAX_BATCH_AGE_MILLIS), Matchers.eq(TimeUnit.MILLISECONDS));
+
+    LogstashWriter writer = createLogstashWriter(mockBuild, errorBuffer, "http://my-jenkins-url", mockDao, mockBuildData, 10, mockTimer);
+    String payload = "{\"data\":{},\"message\":[\"test\"],\"source\":\"jenkins\",\"source_host\":\"http://my-jenkins-url\",\"@version\":1}";
+    errorBuffer.reset();
+    writer.write("line 1");
+    writer.write("line 2");
+    ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+    verify(mockTimer).schedule(task.capture(), Matchers.eq(LogstashWriter.MAX_BATCH_AGE_MILLIS), Matchers.eq(TimeUnit.MILLISECONDS));
+
+    // Unit under test
+    // The build went quiet
+    task.getValue().run();
+
+    // Verify results
+    // No error output
+    assertEquals("Results don't match", "", errorBuffer.toString());
+
+    verify(mockDao).buildPayload(Matchers.eq(mockBuildData), Matchers.eq("http://my-jenkins-url"), Matchers.anyListOf(String.class), Matchers.eq(0L));
+    verify(mockDao).buildPayload(Matchers.eq(mockBuildData), Matchers.eq("http://my-jenkins-url"), Matchers.anyListOf(String.class), Matchers.eq(1L));
+    verify(mockDao).push(Arrays.asList(payload, payload));
+    verify(mockBatchTimer).cancel(false);
+  }
+
   @Test
   public void writeBuildLogSuccess() throws Exception {
     LogstashWriter writer = createLogstashWriter(mockBuild, errorBuffer, "http://my-jenkins-url", mockDao, mockBuildData);
@@ -226,7 +313,7 @@ public class LogstashWriterTest {
     assertEquals("Results don't match", "", errorBuffer.toString());
     verify(mockBuild).getLog(3);
 
-    verify(mockDao).buildPayload(Matchers.eq(mockBuildData), Matchers.eq("http://my-jenkins-url"), Matchers.anyListOf(String.class));
+    verify(mockDao).buildPayload(Matchers.eq(mockBuildData), Matchers.eq("http://my-jenkins-url"), Matchers.anyListOf(String.class), Matchers.eq(0L));
     verify(mockDao).push("{\"data\":{},\"message\":[\"test\"],\"source\":\"jenkins\",\"source_host\":\"http://my-jenkins-url\",\"@version\":1}");
   }
 
@@ -268,7 +355,8 @@ public class LogstashWriterTest {
     assertEquals("Results don't match", "", errorBuffer.toString());
 
     //Verify calls were made to the dao logging twice, not three times.
-    verify(mockDao, times(2)).buildPayload(Matchers.eq(mockBuildData), Matchers.eq("http://my-jenkins-url"), Matchers.anyListOf(String.class));
+    verify(mockDao).buildPayload(Matchers.eq(mockBuildData), Matchers.eq("http://my-jenkins-url"), Matchers.anyListOf(String.class), Matchers.eq(0L));
+    verify(mockDao).buildPayload(Matchers.eq(mockBuildData), Matchers.eq("http://my-jenkins-url"), Matchers.anyListOf(String.class), Matchers.eq(1L));
     verify(mockDao, times(2)).push("{\"data\":{},\"message\":[\"test\"],\"source\":\"jenkins\",\"source_host\":\"http://my-jenkins-url\",\"@version\":1}");
     verify(mockDao).getIndexerType();
     verify(mockDao, times(2)).getDescription();
@@ -292,7 +380,7 @@ public class LogstashWriterTest {
       "[logstash-plugin]: Unable to serialize log data.",
       "java.io.IOException: Unable to read log file");
     verify(mockDao).push("{\"data\":{},\"message\":[\"test\"],\"source\":\"jenkins\",\"source_host\":\"http://my-jenkins-url\",\"@version\":1}");
-    verify(mockDao).buildPayload(eq(mockBuildData), eq("http://my-jenkins-url"), logLinesCaptor.capture());
+    verify(mockDao).buildPayload(eq(mockBuildData), eq("http://my-jenkins-url"), logLinesCaptor.capture(), eq(0L));
     List<String> actualLogLines = logLinesCaptor.getValue();
 
     assertThat("The exception was not sent to Logstash", actualLogLines.get(0), containsString(expectedErrorLines.get(0)));
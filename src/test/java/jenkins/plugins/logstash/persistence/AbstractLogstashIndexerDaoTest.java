@@ -1,11 +1,14 @@
 package jenkins.plugins.logstash.persistence;
 
 import static net.sf.json.test.JSONAssert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import net.sf.json.JSONObject;
 
@@ -17,9 +20,9 @@ import org.mockito.runners.MockitoJUnitRunner;
 
 @RunWith(MockitoJUnitRunner.class)
 public class AbstractLogstashIndexerDaoTest {
-  static final String EMPTY_STRING = "{\"@timestamp\":\"2000-01-01\",\"data\":{},\"message\":[],\"source\":\"jenkins\",\"source_host\":\"http://localhost:8080/jenkins\",\"@version\":1}";
-  static final String ONE_LINE_STRING = "{\"@timestamp\":\"2000-01-01\",\"data\":{},\"message\":[\"LINE 1\"],\"source\":\"jenkins\",\"source_host\":\"http://localhost:8080/jenkins\",\"@version\":1}";
-  static final String TWO_LINE_STRING = "{\"@timestamp\":\"2000-01-01\",\"data\":{},\"message\":[\"LINE 1\", \"LINE 2\"],\"source\":\"jenkins\",\"source_host\":\"http://localhost:8080/jenkins\",\"@version\":1}";
+  static final String EMPTY_STRING = "{\"@timestamp\":\"2000-01-01\",\"data\":{},\"message\":[],\"source\":\"jenkins\",\"source_host\":\"http://localhost:8080/jenkins\",\"@version\":1,\"event_id\":\"6012b32b051817b4\"}";
+  static final String ONE_LINE_STRING = "{\"@timestamp\":\"2000-01-01\",\"data\":{},\"message\":[\"LINE 1\"],\"source\":\"jenkins\",\"source_host\":\"http://localhost:8080/jenkins\",\"@version\":1,\"event_id\":\"edcaaf2fd470ffd2\"}";
+  static final String TWO_LINE_STRING = "{\"@timestamp\":\"2000-01-01\",\"data\":{},\"message\":[\"LINE 1\", \"LINE 2\"],\"source\":\"jenkins\",\"source_host\":\"http://localhost:8080/jenkins\",\"@version\":1,\"event_id\":\"557e2875f1fba46b\"}";
 
   @Mock BuildData mockBuildData;
 
@@ -34,7 +37,7 @@ public class AbstractLogstashIndexerDaoTest {
     AbstractLogstashIndexerDao dao = getInstance();
 
     // Unit under test
-    JSONObject result = dao.buildPayload(mockBuildData, "http://localhost:8080/jenkins", new ArrayList<String>());
+    JSONObject result = dao.buildPayload(mockBuildData, "http://localhost:8080/jenkins", new ArrayList<String>(), 0);
 
     // Verify results
     assertEquals("Results don't match", JSONObject.fromObject(EMPTY_STRING), result);
@@ -45,7 +48,7 @@ public class AbstractLogstashIndexerDaoTest {
     AbstractLogstashIndexerDao dao = getInstance();
 
     // Unit under test
-    JSONObject result = dao.buildPayload(mockBuildData, "http://localhost:8080/jenkins", Arrays.asList("LINE 1"));
+    JSONObject result = dao.buildPayload(mockBuildData, "http://localhost:8080/jenkins", Arrays.asList("LINE 1"), 0);
 
     // Verify results
     assertEquals("Results don't match", JSONObject.fromObject(ONE_LINE_STRING), result);
@@ -56,12 +59,61 @@ public class AbstractLogstashIndexerDaoTest {
     AbstractLogstashIndexerDao dao = getInstance();
 
     // Unit under test
-    JSONObject result = dao.buildPayload(mockBuildData, "http://localhost:8080/jenkins", Arrays.asList("LINE 1", "LINE 2"));
+    JSONObject result = dao.buildPayload(mockBuildData, "http://localhost:8080/jenkins", Arrays.asList("LINE 1", "LINE 2"), 0);
 
     // Verify results
     assertEquals("Results don't match", JSONObject.fromObject(TWO_LINE_STRING), result);
   }
 
+  @Test
+  public void eventIdIsStable() throws Exception {
+    String id = AbstractLogstashIndexerDao.getEventId("http://localhost:8080/jenkins", "job/foo/1/", 3, Arrays.asList("LINE 1"));
+
+    // Verify results
+    org.junit.Assert.assertEquals("Id changed", id,
+      AbstractLogstashIndexerDao.getEventId("http://localhost:8080/jenkins", "job/foo/1/", 3, Arrays.asList("LINE 1")));
+    assertNotEquals("Sequence ignored", id,
+      AbstractLogstashIndexerDao.getEventId("http://localhost:8080/jenkins", "job/foo/1/", 4, Arrays.asList("LINE 1")));
+    assertNotEquals("Build ignored", id,
+      AbstractLogstashIndexerDao.getEventId("http://localhost:8080/jenkins", "job/foo/2/", 3, Arrays.asList("LINE 1")));
+    assertNotEquals("Lines ignored", id,
+      AbstractLogstashIndexerDao.getEventId("http://localhost:8080/jenkins", "job/foo/1/", 3, Arrays.asList("LINE 2")));
+  }
+
+  @Test
+  public void getPayloadField() throws Exception {
+    String payload = "{\"data\":{\"buildVariables\":{\"event_id\":\"var\"}},\"message\":[\"\\\"event_id\\\":\\\"line\\\"\"],\"event_id\":\"0123\"}";
+
+    // Verify results
+    org.junit.Assert.assertEquals("Wrong field", "0123", AbstractLogstashIndexerDao.getPayloadField(payload, "event_id"));
+    assertNull("Missing field found", AbstractLogstashIndexerDao.getPayloadField(payload, "@timestamp"));
+  }
+
+  @Test
+  public void getBuildField() throws Exception {
+    String payload = "{\"data\":{\"projectName\":\"foo\",\"url\":\"job/foo/1/\",\"buildVariables\":{\"url\":\"var\"}},\"message\":[]}";
+
+    // Verify results
+    org.junit.Assert.assertEquals("Wrong field", "job/foo/1/", AbstractLogstashIndexerDao.getBuildField(payload, "url"));
+    assertNull("Missing field found", AbstractLogstashIndexerDao.getBuildField(payload, "buildHost"));
+  }
+
+  @Test
+  public void getEndpoints() throws Exception {
+    // Unit under test
+    List<AbstractLogstashIndexerDao.Endpoint> endpoints =
+      AbstractLogstashIndexerDao.getEndpoints("host1:1234, host2,10.0.0.3:80 ::1,[2001:db8::1]:8080,[2001:db8::2]", 9999);
+
+    // Verify results
+    List<String> formatted = new ArrayList<String>();
+    for (AbstractLogstashIndexerDao.Endpoint endpoint : endpoints) {
+      formatted.add(endpoint.toString());
+    }
+    org.junit.Assert.assertEquals("Wrong endpoints",
+      Arrays.asList("host1:1234", "host2:9999", "10.0.0.3:80", "[::1]:9999", "[2001:db8::1]:8080", "[2001:db8::2]:9999"), formatted);
+    org.junit.Assert.assertEquals("Wrong IPv6 host", "2001:db8::1", endpoints.get(4).host);
+  }
+
   private AbstractLogstashIndexerDao getInstance() {
     return new AbstractLogstashIndexerDao("localhost", -1, "", "", "") {
 
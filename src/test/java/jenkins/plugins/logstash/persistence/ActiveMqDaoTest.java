@@ -4,13 +4,18 @@ import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.*;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
 
 import javax.jms.TopicConnection;
+import javax.jms.BytesMessage;
 import javax.jms.DeliveryMode;
+import javax.jms.ExceptionListener;
 import javax.jms.JMSException;
 import javax.jms.MessageProducer;
 import javax.jms.Session;
 import javax.jms.TextMessage;
+import javax.jms.Queue;
 import javax.jms.Topic;
 
 import org.apache.activemq.ActiveMQConnectionFactory;
@@ -20,9 +25,12 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import jenkins.plugins.logstash.persistence.LogstashIndexerDao.IndexerType;
 
 @RunWith(MockitoJUnitRunner.class)
 public class ActiveMqDaoTest {
@@ -31,11 +39,22 @@ public class ActiveMqDaoTest {
   @Mock TopicConnection mockConnection;
   @Mock Session mockSession;
   @Mock Topic mockDestination;
+  @Mock Queue mockQueue;
   @Mock MessageProducer mockProducer;
   @Mock TextMessage mockMessage;
+  @Mock BytesMessage mockBytesMessage;
 
   ActiveMqDao createDao(String host, int port, String key, String username, String password) {
-    ActiveMqDao factory = new ActiveMqDao(mockConnectionFactory, host, port, key, username, password);
+    return createDao(host, port, key, username, password, new IndexerOptions());
+  }
+
+  ActiveMqDao createDao(String host, int port, String key, String username, String password, IndexerOptions options) {
+    ActiveMqDao factory = new ActiveMqDao(mockConnectionFactory, host, port, key, username, password, options);
+    verify(mockConnectionFactory, atLeastOnce()).setUseAsyncSend(options.isActiveMqAsyncSend());
+    verify(mockConnectionFactory, atLeastOnce()).setUseCompression(options.isActiveMqCompression());
+    if (options.isActiveMqAsyncSend()) {
+      verify(mockConnectionFactory, atLeastOnce()).setProducerWindowSize(options.getActiveMqProducerWindowSize());
+    }
 
     if (!StringUtils.isBlank(username) && !StringUtils.isBlank(password)) {
       verify(mockConnectionFactory, atLeastOnce()).setUserName(username);
@@ -53,7 +72,7 @@ public class ActiveMqDaoTest {
     // Note that we can't run these tests in parallel
     dao = createDao("localhost", port, "logstash", "username", "password");
 
-    when(mockConnectionFactory.createTopicConnection()).thenReturn(mockConnection);
+    when(mockConnectionFactory.createConnection()).thenReturn(mockConnection);
 
     when(mockConnection.createSession(false, Session.AUTO_ACKNOWLEDGE)).thenReturn(mockSession);
     
@@ -71,8 +90,10 @@ public class ActiveMqDaoTest {
     verifyNoMoreInteractions(mockConnection);
     verifyNoMoreInteractions(mockSession);
     verifyNoMoreInteractions(mockDestination);
+    verifyNoMoreInteractions(mockQueue);
     verifyNoMoreInteractions(mockProducer);
     verifyNoMoreInteractions(mockMessage);
+    verifyNoMoreInteractions(mockBytesMessage);
   }
 
   @Test(expected = IllegalArgumentException.class)
@@ -130,14 +151,14 @@ public class ActiveMqDaoTest {
   @Test(expected = IOException.class)
   public void pushFailUnauthorized() throws Exception {
     // Initialize mocks
-    when(mockConnectionFactory.createTopicConnection()).thenThrow(new JMSException("Not authorized"));
+    when(mockConnectionFactory.createConnection()).thenThrow(new JMSException("Not authorized"));
 
     // Unit under test
     try {
       dao.push("{}");
     } catch (IOException e) {
       // Verify results
-      verify(mockConnectionFactory).createTopicConnection();
+      verify(mockConnectionFactory).createConnection();
       assertEquals("wrong error message", "IOException: javax.jms.JMSException: Not authorized", ExceptionUtils.getMessage(e));
       throw e;
     }
@@ -147,14 +168,14 @@ public class ActiveMqDaoTest {
   @Test(expected = IOException.class)
   public void pushFailCantConnect() throws Exception {
     // Initialize mocks
-    when(mockConnectionFactory.createTopicConnection()).thenThrow(new JMSException("Connection refused"));
+    when(mockConnectionFactory.createConnection()).thenThrow(new JMSException("Connection refused"));
 
     // Unit under test
     try {
       dao.push("");
     } catch (IOException e) {
       // Verify results
-      verify(mockConnectionFactory).createTopicConnection();
+      verify(mockConnectionFactory).createConnection();
       assertEquals("wrong error message", "IOException: javax.jms.JMSException: Connection refused", ExceptionUtils.getMessage(e));
       throw e;
     }
@@ -171,7 +192,8 @@ public class ActiveMqDaoTest {
       dao.push("{}");
     } catch (IOException e) {
       // Verify results
-      verify(mockConnectionFactory).createTopicConnection();
+      verify(mockConnectionFactory).createConnection();
+      verify(mockConnection).setExceptionListener(any(ExceptionListener.class));
       verify(mockConnection).start();
       verify(mockConnection).createSession(false, Session.AUTO_ACKNOWLEDGE);
       verify(mockSession).createTopic("logstash");
@@ -179,7 +201,6 @@ public class ActiveMqDaoTest {
       verify(mockProducer).setDeliveryMode(DeliveryMode.PERSISTENT);
       verify(mockSession).createTextMessage("{}");
       verify(mockSession).close();
-      verify(mockConnection).close();
       assertEquals("wrong error message", "IOException: javax.jms.JMSException: Queue length limit exceeded", ExceptionUtils.getMessage(e));
       throw e;
     }
@@ -193,7 +214,8 @@ public class ActiveMqDaoTest {
     // Unit under test
     dao.push(json);
     // Verify results
-    verify(mockConnectionFactory).createTopicConnection();
+    verify(mockConnectionFactory).createConnection();
+    verify(mockConnection).setExceptionListener(any(ExceptionListener.class));
     verify(mockConnection).start();
     verify(mockConnection).createSession(false, Session.AUTO_ACKNOWLEDGE);
     verify(mockSession).createTopic("logstash");
@@ -202,8 +224,6 @@ public class ActiveMqDaoTest {
     verify(mockSession).createTextMessage(json);
     verify(mockMessage).setJMSType("application/json");
     verify(mockProducer).send(mockMessage);
-    verify(mockSession).close();
-    verify(mockConnection).close();
 
   }
 
@@ -215,17 +235,286 @@ public class ActiveMqDaoTest {
     // Unit under test
     dao.push(json);
     // Verify results
-    verify(mockConnectionFactory).createTopicConnection();
+    verify(mockConnectionFactory).createConnection();
+    verify(mockConnection).setExceptionListener(any(ExceptionListener.class));
+    verify(mockConnection).start();
+    verify(mockConnection).createSession(false, Session.AUTO_ACKNOWLEDGE);
+    verify(mockSession).createTopic("logstash");
+    verify(mockSession).createProducer(mockDestination);
+    verify(mockProducer).setDeliveryMode(DeliveryMode.PERSISTENT);
+    verify(mockSession).createTextMessage(json);
+    verify(mockMessage).setJMSType("application/json");
+    verify(mockProducer).send(mockMessage);
+
+  }
+
+  @Test
+  public void pushReusesConnectionAndSession() throws Exception {
+    String json = "{ 'foo': 'bar' }";
+
+    // Unit under test
+    dao.push(json);
+    dao.push(json);
+
+    // Verify results
+    verify(mockConnectionFactory).createConnection();
+    verify(mockConnection).setExceptionListener(any(ExceptionListener.class));
+    verify(mockConnection).start();
+    verify(mockConnection).createSession(false, Session.AUTO_ACKNOWLEDGE);
+    verify(mockSession).createTopic("logstash");
+    verify(mockSession).createProducer(mockDestination);
+    verify(mockProducer).setDeliveryMode(DeliveryMode.PERSISTENT);
+    verify(mockSession, times(2)).createTextMessage(json);
+    verify(mockMessage, times(2)).setJMSType("application/json");
+    verify(mockProducer, times(2)).send(mockMessage);
+  }
+
+  @Test
+  public void closeWhenReplacedByFactory() throws Exception {
+    String json = "{ 'foo': 'bar' }";
+    dao.push(json);
+    IndexerDaoFactory.setInstance(dao);
+
+    // Unit under test
+    IndexerDaoFactory.getInstance(IndexerType.ACTIVE_MQ, "localhost", 61616, "other", null, null, new IndexerOptions());
+
+    // Verify results
+    verify(mockConnectionFactory).createConnection();
+    verify(mockConnection).setExceptionListener(any(ExceptionListener.class));
     verify(mockConnection).start();
     verify(mockConnection).createSession(false, Session.AUTO_ACKNOWLEDGE);
+    verify(mockConnection).close();
     verify(mockSession).createTopic("logstash");
     verify(mockSession).createProducer(mockDestination);
+    verify(mockSession).close();
     verify(mockProducer).setDeliveryMode(DeliveryMode.PERSISTENT);
     verify(mockSession).createTextMessage(json);
     verify(mockMessage).setJMSType("application/json");
     verify(mockProducer).send(mockMessage);
+  }
+
+  @Test
+  public void pushAfterCloseDoesNotKeepConnection() throws Exception {
+    String json = "{ 'foo': 'bar' }";
+    dao.close();
+
+    // Unit under test
+    dao.push(json);
+
+    // Verify results
+    verify(mockConnectionFactory).createConnection();
+    verify(mockConnection).setExceptionListener(any(ExceptionListener.class));
+    verify(mockConnection).start();
+    verify(mockConnection).createSession(false, Session.AUTO_ACKNOWLEDGE);
+    verify(mockConnection).close();
+    verify(mockSession).createTopic("logstash");
+    verify(mockSession).createProducer(mockDestination);
     verify(mockSession).close();
+    verify(mockProducer).setDeliveryMode(DeliveryMode.PERSISTENT);
+    verify(mockSession).createTextMessage(json);
+    verify(mockMessage).setJMSType("application/json");
+    verify(mockProducer).send(mockMessage);
+  }
+
+  @Test
+  public void pushReconnectsAfterConnectionFailure() throws Exception {
+    String json = "{ 'foo': 'bar' }";
+    dao.push(json);
+    ArgumentCaptor<ExceptionListener> listener = ArgumentCaptor.forClass(ExceptionListener.class);
+    verify(mockConnection).setExceptionListener(listener.capture());
+
+    // The broker went away
+    listener.getValue().onException(new JMSException("Connection reset"));
+
+    // Unit under test
+    dao.push(json);
+
+    // Verify results
+    verify(mockConnectionFactory, times(2)).createConnection();
+    verify(mockConnection, times(2)).setExceptionListener(any(ExceptionListener.class));
+    verify(mockConnection, times(2)).start();
+    verify(mockConnection, times(2)).createSession(false, Session.AUTO_ACKNOWLEDGE);
     verify(mockConnection).close();
+    verify(mockSession, times(2)).createTopic("logstash");
+    verify(mockSession, times(2)).createProducer(mockDestination);
+    verify(mockProducer, times(2)).setDeliveryMode(DeliveryMode.PERSISTENT);
+    verify(mockSession, times(2)).createTextMessage(json);
+    verify(mockMessage, times(2)).setJMSType("application/json");
+    verify(mockProducer, times(2)).send(mockMessage);
+  }
+
+  @Test
+  public void pushNonPersistentAsync() throws Exception {
+    IndexerOptions options = new IndexerOptions();
+    options.setActiveMqPersistent(false);
+    options.setActiveMqAsyncSend(true);
+    options.setActiveMqProducerWindowSize(65536);
+    String json = "{ 'foo': 'bar' }";
+
+    // Unit under test
+    dao = createDao("localhost", 5672, "logstash", null, null, options);
+    dao.push(json);
+
+    // Verify results
+    verify(mockConnectionFactory).createConnection();
+    verify(mockConnection).setExceptionListener(any(ExceptionListener.class));
+    verify(mockConnection).start();
+    verify(mockConnection).createSession(false, Session.AUTO_ACKNOWLEDGE);
+    verify(mockSession).createTopic("logstash");
+    verify(mockSession).createProducer(mockDestination);
+    verify(mockProducer).setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+    verify(mockSession).createTextMessage(json);
+    verify(mockMessage).setJMSType("application/json");
+    verify(mockProducer).send(mockMessage);
+  }
+
+  @Test
+  public void pushToQueue() throws Exception {
+    IndexerOptions options = new IndexerOptions();
+    options.setActiveMqDestinationType(ActiveMqDao.DestinationType.QUEUE);
+    String json = "{ 'foo': 'bar' }";
+
+    // Initialize mocks
+    when(mockSession.createQueue("logstash")).thenReturn(mockQueue);
+    when(mockSession.createProducer(mockQueue)).thenReturn(mockProducer);
+
+    // Unit under test
+    dao = createDao("localhost", 5672, "logstash", null, null, options);
+    dao.push(json);
+
+    // Verify results
+    verify(mockConnectionFactory).createConnection();
+    verify(mockConnection).setExceptionListener(any(ExceptionListener.class));
+    verify(mockConnection).start();
+    verify(mockConnection).createSession(false, Session.AUTO_ACKNOWLEDGE);
+    verify(mockSession).createQueue("logstash");
+    verify(mockSession).createProducer(mockQueue);
+    verify(mockProducer).setDeliveryMode(DeliveryMode.PERSISTENT);
+    verify(mockSession).createTextMessage(json);
+    verify(mockMessage).setJMSType("application/json");
+    verify(mockProducer).send(mockMessage);
+  }
+
+  @Test
+  public void getBrokerUrl() throws Exception {
+    // Unit under test and verify results
+    assertEquals("Wrong single broker URL", "tcp://localhost:61616", ActiveMqDao.getBrokerUrl("localhost", 61616));
+    assertEquals("Wrong failover URL", "failover:(tcp://amq1:61617,tcp://amq2:61616)?timeout=10000&maxReconnectAttempts=10",
+      ActiveMqDao.getBrokerUrl("amq1:61617, amq2", 61616));
+    assertEquals("Wrong IPv6 URL", "tcp://[fe80::1]:61616", ActiveMqDao.getBrokerUrl("fe80::1", 61616));
+    assertEquals("Wrong IPv6 failover URL", "failover:(tcp://[::1]:61617,tcp://[::2]:61616)?" + ActiveMqDao.FAILOVER_OPTIONS,
+      ActiveMqDao.getBrokerUrl("[::1]:61617,[::2]", 61616));
+    assertEquals("Complete URL was changed", "failover:(ssl://amq1:61617)?randomize=false",
+      ActiveMqDao.getBrokerUrl("failover:(ssl://amq1:61617)?randomize=false", 61616));
+  }
+
+  @Test
+  public void pushTransactedBatch() throws Exception {
+    IndexerOptions options = new IndexerOptions();
+    options.setActiveMqTransacted(true);
+    String json = "{ 'foo': 'bar' }";
+
+    // Initialize mocks
+    when(mockConnection.createSession(true, Session.SESSION_TRANSACTED)).thenReturn(mockSession);
+
+    // Unit under test
+    dao = createDao("localhost", 5672, "logstash", null, null, options);
+    dao.push(Arrays.asList(json, json));
+
+    // Verify results
+    InOrder inOrder = inOrder(mockProducer, mockSession);
+    inOrder.verify(mockProducer, times(2)).send(mockMessage);
+    inOrder.verify(mockSession).commit();
+    verify(mockConnectionFactory).createConnection();
+    verify(mockConnection).setExceptionListener(any(ExceptionListener.class));
+    verify(mockConnection).start();
+    verify(mockConnection).createSession(true, Session.SESSION_TRANSACTED);
+    verify(mockSession).createTopic("logstash");
+    verify(mockSession).createProducer(mockDestination);
+    verify(mockProducer).setDeliveryMode(DeliveryMode.PERSISTENT);
+    verify(mockSession, times(2)).createTextMessage(json);
+    verify(mockMessage, times(2)).setJMSType("application/json");
+  }
 
+  @Test
+  public void pushTransactedRetriesRolledBackBatch() throws Exception {
+    IndexerOptions options = new IndexerOptions();
+    options.setActiveMqTransacted(true);
+    String json = "{ 'foo': 'bar' }";
+
+    // Initialize mocks
+    when(mockConnection.createSession(true, Session.SESSION_TRANSACTED)).thenReturn(mockSession);
+    doThrow(new JMSException("Transaction failed")).doNothing().when(mockSession).commit();
+
+    // Unit under test
+    dao = createDao("localhost", 5672, "logstash", null, null, options);
+    dao.push(Arrays.asList(json, json));
+
+    // Verify results
+    verify(mockConnectionFactory).createConnection();
+    verify(mockConnection).setExceptionListener(any(ExceptionListener.class));
+    verify(mockConnection).start();
+    verify(mockConnection, times(2)).createSession(true, Session.SESSION_TRANSACTED);
+    verify(mockSession, times(2)).createTopic("logstash");
+    verify(mockSession, times(2)).createProducer(mockDestination);
+    verify(mockProducer, times(2)).setDeliveryMode(DeliveryMode.PERSISTENT);
+    verify(mockSession, times(4)).createTextMessage(json);
+    verify(mockMessage, times(4)).setJMSType("application/json");
+    verify(mockProducer, times(4)).send(mockMessage);
+    verify(mockSession, times(2)).commit();
+    verify(mockSession).close();
+  }
+
+  @Test
+  public void pushCompressedBatchBytesMessage() throws Exception {
+    IndexerOptions options = new IndexerOptions();
+    options.setActiveMqBytesMessage(true);
+    options.setActiveMqBatchMessages(true);
+    options.setActiveMqCompression(true);
+
+    // Initialize mocks
+    when(mockSession.createBytesMessage()).thenReturn(mockBytesMessage);
+
+    // Unit under test
+    dao = createDao("localhost", 5672, "logstash", null, null, options);
+    dao.push(Arrays.asList("{\"n\":\"\u00e9\"}", "{\"n\":2}"));
+
+    // Verify results
+    verify(mockConnectionFactory).createConnection();
+    verify(mockConnection).setExceptionListener(any(ExceptionListener.class));
+    verify(mockConnection).start();
+    verify(mockConnection).createSession(false, Session.AUTO_ACKNOWLEDGE);
+    verify(mockSession).createTopic("logstash");
+    verify(mockSession).createProducer(mockDestination);
+    verify(mockProducer).setDeliveryMode(DeliveryMode.PERSISTENT);
+    verify(mockSession).createBytesMessage();
+    verify(mockBytesMessage).writeBytes("{\"n\":\"\u00e9\"}\n{\"n\":2}\n".getBytes("UTF-8"));
+    verify(mockBytesMessage).setJMSType("application/json");
+    verify(mockProducer).send(mockBytesMessage);
+  }
+
+  @Test
+  public void pushBatchOfOneTerminatesLine() throws Exception {
+    IndexerOptions options = new IndexerOptions();
+    options.setActiveMqBatchMessages(true);
+
+    // Initialize mocks
+    when(mockSession.createTextMessage("{\"n\":1}\n")).thenReturn(mockMessage);
+
+    // Unit under test
+    dao = createDao("localhost", 5672, "logstash", null, null, options);
+    dao.push(Collections.singletonList("{\"n\":1}"));
+
+    // Verify results
+    verify(mockConnectionFactory).createConnection();
+    verify(mockConnection).setExceptionListener(any(ExceptionListener.class));
+    verify(mockConnection).start();
+    verify(mockConnection).createSession(false, Session.AUTO_ACKNOWLEDGE);
+    verify(mockSession).createTopic("logstash");
+    verify(mockSession).createProducer(mockDestination);
+    verify(mockProducer).setDeliveryMode(DeliveryMode.PERSISTENT);
+    verify(mockSession).createTextMessage("{\"n\":1}\n");
+    verify(mockMessage).setJMSType("application/json");
+    verify(mockProducer).send(mockMessage);
   }
 }
@@ -0,0 +1,112 @@
+package jenkins.plugins.logstash.persistence;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.Connection;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.Session;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Compares the events per second sent as persistent messages with synchronous sends, persistent messages
+ * with asynchronous sends and non-persistent messages to an embedded broker with a KahaDB store in a temporary
+ * directory, which a consumer on the same broker drains.
+ * Not run by the build; start it with the test classpath:
+ * <pre>java jenkins.plugins.logstash.persistence.ActiveMqSenderBenchmark [events] [batch size]</pre>
+ */
+public class ActiveMqSenderBenchmark {
+  private static final String BROKER_URL = "vm://benchmark?create=false";
+  private static final String QUEUE = "logstash";
+
+  public static void main(String[] args) throws Exception {
+    int events = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+    int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+    File dataDirectory = File.createTempFile("activemq-benchmark", "");
+    dataDirectory.delete();
+    dataDirectory.mkdirs();
+    BrokerService broker = new BrokerService();
+    Connection consumerConnection = null;
+    try {
+      broker.setBrokerName("benchmark");
+      broker.setDataDirectoryFile(dataDirectory);
+      broker.setDeleteAllMessagesOnStartup(true);
+      broker.setUseJmx(false);
+      broker.start();
+      broker.waitUntilStarted();
+
+      final AtomicLong received = new AtomicLong();
+      consumerConnection = new ActiveMQConnectionFactory(BROKER_URL).createConnection();
+      Session consumerSession = consumerConnection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+      MessageConsumer consumer = consumerSession.createConsumer(consumerSession.createQueue(QUEUE));
+      consumer.setMessageListener(new MessageListener() {
+        @Override
+        public void onMessage(Message message) {
+          received.incrementAndGet();
+        }
+      });
+      consumerConnection.start();
+
+      String event = "{\"data\":{\"projectName\":\"benchmark\",\"url\":\"job/benchmark/1/\"},\"message\":[\""
+        + StringUtils.repeat("x", 120) + "\"],\"source\":\"jenkins\",\"@version\":1}";
+      List<String> batch = new ArrayList<String>(batchSize);
+      for (int i = 0; i < batchSize; i++) {
+        batch.add(event);
+      }
+
+      String[] names = { "persistent/sync", "persistent/async", "non-persistent" };
+      boolean[] persistent = { true, true, false };
+      boolean[] asyncSend = { false, true, false };
+      for (int i = 0; i < names.length; i++) {
+        IndexerOptions options = new IndexerOptions();
+        options.setActiveMqDestinationType(ActiveMqDao.DestinationType.QUEUE);
+        options.setActiveMqPersistent(persistent[i]);
+        options.setActiveMqAsyncSend(asyncSend[i]);
+        ActiveMqDao dao = new ActiveMqDao(new ActiveMQConnectionFactory(BROKER_URL), "localhost", 61616, QUEUE, null, null, options);
+        try {
+          // Warm up
+          for (int sent = 0; sent < events / 10; sent += batchSize) {
+            dao.push(batch);
+          }
+          awaitReceived(received, events / 10);
+          received.set(0);
+          long start = System.nanoTime();
+          for (int sent = 0; sent < events; sent += batchSize) {
+            dao.push(batch);
+          }
+          long elapsed = System.nanoTime() - start;
+          awaitReceived(received, events);
+          long delivered = System.nanoTime() - start;
+          received.set(0);
+          System.out.printf("%-16s %,10.0f events/s sent, %,10.0f events/s delivered%n",
+            names[i], events * 1e9 / elapsed, events * 1e9 / delivered);
+        } finally {
+          dao.close();
+        }
+      }
+    } finally {
+      if (consumerConnection != null) {
+        consumerConnection.close();
+      }
+      broker.stop();
+      broker.waitUntilStopped();
+      FileUtils.deleteDirectory(dataDirectory);
+    }
+  }
+
+  private static void awaitReceived(AtomicLong received, long expected) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 60000;
+    while (received.get() < expected && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+  }
+}
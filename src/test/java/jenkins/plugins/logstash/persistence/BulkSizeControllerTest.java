@@ -0,0 +1,66 @@
+package jenkins.plugins.logstash.persistence;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class BulkSizeControllerTest {
+
+  @Test
+  public void startsAtMinimum() throws Exception {
+    assertEquals("Wrong initial size", 10, new BulkSizeController(10, 100, 500).getSize());
+  }
+
+  @Test
+  public void invalidLimitsAreCorrected() throws Exception {
+    BulkSizeController controller = new BulkSizeController(0, -1, 500);
+
+    assertEquals("Wrong minimum", 1, controller.minSize);
+    assertEquals("Wrong maximum", 1, controller.maxSize);
+  }
+
+  @Test
+  public void growsAdditivelyUpToMaximum() throws Exception {
+    BulkSizeController controller = new BulkSizeController(10, 25, 500);
+
+    // Unit under test
+    controller.onSuccess(100);
+    assertEquals("Wrong size", 20, controller.getSize());
+    controller.onSuccess(500);
+    assertEquals("Wrong size", 25, controller.getSize());
+    controller.onSuccess(100);
+    assertEquals("Wrong size", 25, controller.getSize());
+  }
+
+  @Test
+  public void halvesOnSlowResponse() throws Exception {
+    BulkSizeController controller = new BulkSizeController(10, 100, 500);
+    for (int i = 0; i < 7; i++) {
+      controller.onSuccess(100);
+    }
+    assertEquals("Wrong size", 80, controller.getSize());
+
+    // Unit under test
+    controller.onSuccess(501);
+
+    // Verify results
+    assertEquals("Wrong size", 40, controller.getSize());
+  }
+
+  @Test
+  public void halvesOnRejectionDownToMinimum() throws Exception {
+    BulkSizeController controller = new BulkSizeController(10, 100, 500);
+    for (int i = 0; i < 3; i++) {
+      controller.onSuccess(100);
+    }
+    assertEquals("Wrong size", 40, controller.getSize());
+
+    // Unit under test
+    controller.onRejected();
+    assertEquals("Wrong size", 20, controller.getSize());
+    controller.onRejected();
+    assertEquals("Wrong size", 10, controller.getSize());
+    controller.onRejected();
+    assertEquals("Wrong size", 10, controller.getSize());
+  }
+}
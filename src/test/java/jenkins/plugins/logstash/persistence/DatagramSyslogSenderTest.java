@@ -0,0 +1,62 @@
+package jenkins.plugins.logstash.persistence;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+
+import org.apache.commons.lang.StringUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DatagramSyslogSenderTest {
+  DatagramSyslogSender sender;
+  DatagramChannel sink;
+
+  @Before
+  public void before() throws Exception {
+    // A local syslog server
+    sink = DatagramChannel.open();
+    sink.bind(new InetSocketAddress("127.0.0.1", 0));
+    sender = new DatagramSyslogSender("127.0.0.1", sink.socket().getLocalPort());
+  }
+
+  @After
+  public void after() throws Exception {
+    sender.close();
+    sink.close();
+  }
+
+  String receive() throws Exception {
+    ByteBuffer buffer = ByteBuffer.allocate(DatagramSyslogSender.MAX_DATAGRAM_SIZE + 1);
+    sink.receive(buffer);
+    buffer.flip();
+    byte[] datagram = new byte[buffer.remaining()];
+    buffer.get(datagram);
+    return new String(datagram, "UTF-8");
+  }
+
+  @Test
+  public void sendOneDatagramPerMessage() throws Exception {
+    // Unit under test
+    sender.send("<14>1 header @cee: ", Arrays.asList("{\"n\":1}", "{\"n\":\"\u00e9\"}"));
+
+    // Verify results
+    assertEquals("Wrong datagram", "<14>1 header @cee: {\"n\":1}", receive());
+    assertEquals("Wrong datagram", "<14>1 header @cee: {\"n\":\"\u00e9\"}", receive());
+  }
+
+  @Test
+  public void sendDropsOversizedMessage() throws Exception {
+    String message = StringUtils.repeat("x", DatagramSyslogSender.MAX_DATAGRAM_SIZE);
+
+    // Unit under test
+    sender.send("<14>1 ", Arrays.asList(message, "{\"n\":1}"));
+
+    // Verify results
+    assertEquals("Wrong datagram", "<14>1 {\"n\":1}", receive());
+  }
+}
@@ -1,14 +1,18 @@
 package jenkins.plugins.logstash.persistence;
 
 import org.apache.commons.lang.CharEncoding;
+import org.apache.commons.lang.StringUtils;
 import org.apache.http.HttpEntity;
 import org.apache.http.StatusLine;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -19,6 +23,9 @@ import org.mockito.runners.MockitoJUnitRunner;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.URI;
+import java.util.Arrays;
+
+import net.sf.json.JSONObject;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -34,7 +41,14 @@ public class ElasticSearchDaoTest {
   @Mock HttpEntity mockEntity;
 
   ElasticSearchDao createDao(String host, int port, String key, String username, String password) {
-    return new ElasticSearchDao(mockClientBuilder, host, port, key, username, password);
+    // Template installation has its own tests
+    IndexerOptions options = new IndexerOptions();
+    options.setInstallTemplate(false);
+    return createDao(host, port, key, username, password, options);
+  }
+
+  ElasticSearchDao createDao(String host, int port, String key, String username, String password, IndexerOptions options) {
+    return new ElasticSearchDao(mockClientBuilder, host, port, key, username, password, options);
   }
 
   @Before
@@ -115,7 +129,7 @@ public class ElasticSearchDaoTest {
     assertEquals("Wrong name", "username", dao.username);
     assertEquals("Wrong password", "password", dao.password);
     assertEquals("Wrong auth", "dXNlcm5hbWU6cGFzc3dvcmQ=", dao.auth);
-    assertEquals("Wrong uri", new URI("https://localhost:8200/logstash"), dao.uri);
+    assertEquals("Wrong uri", new URI("https://localhost:8200/logstash/_doc"), dao.uri);
   }
 
   @Test
@@ -230,4 +244,359 @@ public class ElasticSearchDaoTest {
     }
 
   }
+
+  @Test
+  public void pushBulkSuccess() throws Exception {
+    dao = createDao("http://localhost", 8200, "/jenkins/logstash", "", "");
+
+    when(mockStatusLine.getStatusCode()).thenReturn(200);
+    when(mockResponse.getEntity()).thenReturn(new StringEntity("{\"took\":3,\"errors\":false,\"items\":[]}", ContentType.APPLICATION_JSON));
+
+    // Unit under test
+    dao.push(Arrays.asList("{ 'foo': 'bar' }", "{ 'foo': 'baz' }"));
+
+    // Verify results
+    ArgumentCaptor<HttpPost> post = ArgumentCaptor.forClass(HttpPost.class);
+    verify(mockClientBuilder).build();
+    verify(mockHttpClient).execute(post.capture());
+    verify(mockResponse).close();
+    verify(mockHttpClient).close();
+    assertEquals("Wrong uri", new URI("http://localhost:8200/jenkins/logstash/_bulk"), post.getValue().getURI());
+    assertEquals("Wrong content", "{\"index\":{}}\n{ 'foo': 'bar' }\n{\"index\":{}}\n{ 'foo': 'baz' }\n",
+      EntityUtils.toString(post.getValue().getEntity()));
+    assertEquals("Wrong dead letter count", 0, dao.getDeadLetterCount());
+  }
+
+  @Test
+  public void pushBulkRetriesRejectedItems() throws Exception {
+    dao = createDao("http://localhost", 8200, "/jenkins/logstash", "", "");
+    dao.retryBackoffMillis = 0;
+
+    when(mockStatusLine.getStatusCode()).thenReturn(200);
+    when(mockResponse.getEntity()).thenReturn(
+      new StringEntity("{\"took\":3,\"errors\":true,\"items\":[" +
+        "{\"index\":{\"_id\":\"1\",\"status\":201}}," +
+        "{\"index\":{\"_id\":\"2\",\"status\":429,\"error\":{\"type\":\"es_rejected_execution_exception\",\"reason\":\"queue full\"}}}," +
+        "{\"index\":{\"_id\":\"3\",\"status\":400,\"error\":{\"type\":\"mapper_parsing_exception\",\"reason\":\"failed to parse\"}}}]}",
+        ContentType.APPLICATION_JSON),
+      new StringEntity("{\"took\":1,\"errors\":false,\"items\":[{\"index\":{\"_id\":\"4\",\"status\":201}}]}", ContentType.APPLICATION_JSON));
+
+    // Unit under test
+    dao.push(Arrays.asList("{\"n\":1}", "{\"n\":2}", "{\"n\":3}"));
+
+    // Verify results
+    ArgumentCaptor<HttpPost> post = ArgumentCaptor.forClass(HttpPost.class);
+    verify(mockClientBuilder).build();
+    verify(mockHttpClient, times(2)).execute(post.capture());
+    verify(mockResponse, times(2)).close();
+    verify(mockHttpClient).close();
+    assertEquals("Only the rejected item should be sent again", "{\"index\":{}}\n{\"n\":2}\n",
+      EntityUtils.toString(post.getAllValues().get(1).getEntity()));
+    assertEquals("Wrong dead letter count", 1, dao.getDeadLetterCount());
+  }
+
+  @Test
+  public void pushBulkGivesUpAfterRetries() throws Exception {
+    dao = createDao("http://localhost", 8200, "/jenkins/logstash", "", "");
+    dao.retryBackoffMillis = 0;
+
+    when(mockStatusLine.getStatusCode()).thenReturn(429, 429, 429, 200);
+    when(mockResponse.getEntity()).thenReturn(new StringEntity(
+      "{\"took\":3,\"errors\":true,\"items\":[{\"index\":{\"status\":429,\"error\":\"EsRejectedExecutionException[rejected]\"}}]}",
+      ContentType.APPLICATION_JSON));
+
+    // Unit under test
+    dao.push(Arrays.asList("{\"n\":1}"));
+
+    // Verify results
+    verify(mockClientBuilder).build();
+    verify(mockHttpClient, times(4)).execute(any(HttpPost.class));
+    verify(mockResponse, times(4)).close();
+    verify(mockHttpClient).close();
+    assertEquals("Wrong dead letter count", 1, dao.getDeadLetterCount());
+  }
+
+  @Test
+  public void pushBulkDeadLettersBusyRequestAfterRetries() throws Exception {
+    dao = createDao("http://localhost", 8200, "/jenkins/logstash", "", "");
+    dao.retryBackoffMillis = 0;
+
+    when(mockStatusLine.getStatusCode()).thenReturn(503);
+
+    // Unit under test
+    dao.push(Arrays.asList("{\"n\":1}", "{\"n\":2}"));
+
+    // Verify results
+    verify(mockClientBuilder).build();
+    verify(mockHttpClient, times(4)).execute(any(HttpPost.class));
+    verify(mockResponse, times(4)).close();
+    verify(mockHttpClient).close();
+    assertEquals("Wrong dead letter count", 2, dao.getDeadLetterCount());
+  }
+
+  @Test(expected = IOException.class)
+  public void pushBulkFailTooManyItems() throws Exception {
+    dao = createDao("http://localhost", 8200, "/jenkins/logstash", "", "");
+
+    when(mockStatusLine.getStatusCode()).thenReturn(200);
+    when(mockResponse.getEntity()).thenReturn(new StringEntity("{\"took\":3,\"errors\":true,\"items\":[" +
+      "{\"index\":{\"status\":201}},{\"index\":{\"status\":201}}]}", ContentType.APPLICATION_JSON));
+
+    // Unit under test
+    try {
+      dao.push(Arrays.asList("{\"n\":1}"));
+    } catch (IOException e) {
+      // Verify results
+      verify(mockClientBuilder).build();
+      verify(mockHttpClient).execute(any(HttpPost.class));
+      verify(mockResponse).close();
+      verify(mockHttpClient).close();
+      assertEquals("wrong error message", "Bulk response lists more items than were sent: 1", e.getMessage());
+      throw e;
+    }
+  }
+
+  @Test
+  public void getPostEventId() throws Exception {
+    dao = createDao("http://localhost", 8200, "/jenkins/logstash", "", "");
+
+    // Unit under test
+    HttpPost post = dao.getHttpPost("{\"@version\":1,\"event_id\":\"557e2875f1fba46b\"}");
+
+    // Verify results
+    assertEquals("Wrong uri", new URI("http://localhost:8200/jenkins/logstash/557e2875f1fba46b?op_type=create"), post.getURI());
+  }
+
+  @Test
+  public void pushEventIdConflictSuccess() throws Exception {
+    dao = createDao("http://localhost", 8200, "/jenkins/logstash", "", "");
+
+    when(mockStatusLine.getStatusCode()).thenReturn(409);
+
+    // Unit under test
+    dao.push("{\"@version\":1,\"event_id\":\"557e2875f1fba46b\"}");
+
+    // Verify results
+    verify(mockClientBuilder).build();
+    verify(mockHttpClient).execute(any(HttpPost.class));
+    verify(mockStatusLine, atLeastOnce()).getStatusCode();
+    verify(mockResponse).close();
+    verify(mockHttpClient).close();
+  }
+
+  @Test
+  public void pushBulkEventIds() throws Exception {
+    dao = createDao("http://localhost", 8200, "/jenkins/logstash", "", "");
+    dao.retryBackoffMillis = 0;
+
+    when(mockStatusLine.getStatusCode()).thenReturn(200);
+    when(mockResponse.getEntity()).thenReturn(new StringEntity("{\"took\":3,\"errors\":true,\"items\":[" +
+      "{\"create\":{\"_id\":\"a1\",\"status\":201}}," +
+      "{\"create\":{\"_id\":\"a2\",\"status\":409,\"error\":{\"type\":\"version_conflict_engine_exception\"}}}]}",
+      ContentType.APPLICATION_JSON));
+
+    // Unit under test
+    dao.push(Arrays.asList("{\"n\":1,\"event_id\":\"a1\"}", "{\"n\":2,\"event_id\":\"a2\"}"));
+
+    // Verify results
+    ArgumentCaptor<HttpPost> post = ArgumentCaptor.forClass(HttpPost.class);
+    verify(mockClientBuilder).build();
+    verify(mockHttpClient).execute(post.capture());
+    verify(mockResponse).close();
+    verify(mockHttpClient).close();
+    assertEquals("Wrong content",
+      "{\"create\":{\"_id\":\"a1\"}}\n{\"n\":1,\"event_id\":\"a1\"}\n" +
+      "{\"create\":{\"_id\":\"a2\"}}\n{\"n\":2,\"event_id\":\"a2\"}\n",
+      EntityUtils.toString(post.getValue().getEntity()));
+    assertEquals("Conflicts should not be dead lettered", 0, dao.getDeadLetterCount());
+  }
+
+  @Test
+  public void pushBulkSplitsByBulkSize() throws Exception {
+    IndexerOptions options = new IndexerOptions();
+    options.setInstallTemplate(false);
+    options.setMinBulkSize(2);
+    options.setMaxBulkSize(4);
+    dao = createDao("http://localhost", 8200, "/jenkins/logstash", "", "", options);
+
+    when(mockStatusLine.getStatusCode()).thenReturn(200);
+    when(mockResponse.getEntity()).thenReturn(new StringEntity("{\"took\":3,\"errors\":false,\"items\":[]}", ContentType.APPLICATION_JSON));
+
+    // Unit under test
+    dao.push(Arrays.asList("{\"n\":1}", "{\"n\":2}", "{\"n\":3}", "{\"n\":4}", "{\"n\":5}"));
+
+    // Verify results
+    ArgumentCaptor<HttpPost> post = ArgumentCaptor.forClass(HttpPost.class);
+    verify(mockClientBuilder).build();
+    verify(mockHttpClient, times(2)).execute(post.capture());
+    verify(mockResponse, times(2)).close();
+    verify(mockHttpClient).close();
+    assertEquals("Wrong first bulk", "{\"index\":{}}\n{\"n\":1}\n{\"index\":{}}\n{\"n\":2}\n",
+      EntityUtils.toString(post.getAllValues().get(0).getEntity()));
+    assertEquals("Bulk size did not grow", 3, StringUtils.countMatches(EntityUtils.toString(post.getAllValues().get(1).getEntity()), "{\"index\":{}}"));
+    assertEquals("Wrong bulk size", 4, dao.getBulkSize());
+  }
+
+  @Test
+  public void pushBulkShrinksOnRejection() throws Exception {
+    IndexerOptions options = new IndexerOptions();
+    options.setInstallTemplate(false);
+    options.setMinBulkSize(2);
+    dao = createDao("http://localhost", 8200, "/jenkins/logstash", "", "", options);
+    dao.retryBackoffMillis = 0;
+    dao.bulkSize.onSuccess(0);
+    dao.bulkSize.onSuccess(0);
+
+    when(mockStatusLine.getStatusCode()).thenReturn(429, 200);
+    when(mockResponse.getEntity()).thenReturn(new StringEntity("{\"took\":3,\"errors\":false,\"items\":[]}", ContentType.APPLICATION_JSON));
+
+    // Unit under test
+    dao.push(Arrays.asList("{\"n\":1}"));
+
+    // Verify results
+    verify(mockClientBuilder).build();
+    verify(mockHttpClient, times(2)).execute(any(HttpPost.class));
+    verify(mockResponse, times(2)).close();
+    verify(mockHttpClient).close();
+    // 6, halved to 3 by the rejection, grown by 2 after the retry
+    assertEquals("Wrong bulk size", 5, dao.getBulkSize());
+  }
+
+  @Test
+  public void pushBulkDatedIndex() throws Exception {
+    dao = createDao("http://localhost", 8200, "/jenkins-%{+YYYY.MM.dd}/logstash", "", "");
+    String day1 = "{\"@timestamp\":\"2015-03-01T12:00:00+0000\"}";
+    String day2 = "{\"@timestamp\":\"2015-03-02T12:00:00+0000\"}";
+
+    when(mockStatusLine.getStatusCode()).thenReturn(200);
+    when(mockResponse.getEntity()).thenReturn(new StringEntity("{\"took\":3,\"errors\":false,\"items\":[]}", ContentType.APPLICATION_JSON));
+
+    // Unit under test
+    dao.push(Arrays.asList(day1, day2));
+
+    // Verify results
+    ArgumentCaptor<HttpPost> post = ArgumentCaptor.forClass(HttpPost.class);
+    verify(mockClientBuilder).build();
+    verify(mockHttpClient).execute(post.capture());
+    verify(mockResponse).close();
+    verify(mockHttpClient).close();
+    assertEquals("Wrong uri", new URI("http://localhost:8200/_bulk"), post.getValue().getURI());
+    assertEquals("Wrong content",
+      "{\"index\":{\"_index\":\"jenkins-2015.03.01\",\"_type\":\"logstash\"}}\n" + day1 + "\n" +
+      "{\"index\":{\"_index\":\"jenkins-2015.03.02\",\"_type\":\"logstash\"}}\n" + day2 + "\n",
+      EntityUtils.toString(post.getValue().getEntity()));
+  }
+
+  @Test
+  public void getPostDatedIndex() throws Exception {
+    dao = createDao("http://localhost", 8200, "jenkins-%{+YYYY.MM}/logstash", "", "");
+
+    // Unit under test
+    HttpPost post = dao.getHttpPost("{\"@timestamp\":\"2015-03-01T12:00:00+0000\"}");
+
+    assertEquals("Wrong uri", new URI("http://localhost:8200/jenkins-2015.03/logstash"), post.getURI());
+  }
+
+  @Test
+  public void getTemplateDatedIndex() throws Exception {
+    dao = createDao("http://localhost", 8200, "/jenkins-%{+YYYY.MM.dd}/logstash", "", "", new IndexerOptions());
+
+    // Unit under test
+    JSONObject template = JSONObject.fromObject(dao.getTemplate());
+
+    // Verify results
+    assertEquals("Wrong template uri", new URI("http://localhost:8200/_template/logstash-plugin-jenkins"), dao.templateUri);
+    assertEquals("Wrong index pattern", "jenkins-*", template.getString("template"));
+    JSONObject mapping = template.getJSONObject("mappings").getJSONObject("logstash");
+    JSONObject buildVariables = mapping.getJSONArray("dynamic_templates").getJSONObject(0).getJSONObject("build_variables");
+    assertEquals("Wrong build variables path", "data.buildVariables.*", buildVariables.getString("path_match"));
+    assertEquals("Wrong build variables mapping", "keyword", buildVariables.getJSONObject("mapping").getString("type"));
+    assertEquals("Norms not disabled", false, mapping.getJSONObject("properties").getJSONObject("message").getBoolean("norms"));
+  }
+
+  @Test
+  public void getTemplateTypelessIndex() throws Exception {
+    dao = createDao("http://localhost", 8200, "/jenkins-%{+YYYY.MM.dd}", "", "", new IndexerOptions());
+
+    // Unit under test
+    JSONObject template = JSONObject.fromObject(dao.getTemplate());
+
+    // Verify results
+    assertEquals("Wrong index pattern", "jenkins-*", template.getJSONArray("index_patterns").getString(0));
+    JSONObject mapping = template.getJSONObject("mappings");
+    JSONObject buildVariables = mapping.getJSONArray("dynamic_templates").getJSONObject(0).getJSONObject("build_variables");
+    assertEquals("Wrong build variables mapping", "keyword", buildVariables.getJSONObject("mapping").getString("type"));
+    assertEquals("Norms not disabled", false, mapping.getJSONObject("properties").getJSONObject("message").getBoolean("norms"));
+  }
+
+  @Test
+  public void pushInstallsTemplateOnce() throws Exception {
+    dao = createDao("http://localhost", 8200, "/jenkins/logstash", "username", "password", new IndexerOptions());
+
+    when(mockStatusLine.getStatusCode()).thenReturn(200, 201, 201);
+    when(mockHttpClient.execute(any(HttpUriRequest.class))).thenReturn(mockResponse);
+
+    // Unit under test
+    dao.push("{ 'foo': 'bar' }");
+    dao.push("{ 'foo': 'bar' }");
+
+    // Verify results
+    ArgumentCaptor<HttpUriRequest> request = ArgumentCaptor.forClass(HttpUriRequest.class);
+    verify(mockClientBuilder, times(2)).build();
+    verify(mockHttpClient, times(3)).execute(request.capture());
+    verify(mockResponse, times(3)).close();
+    verify(mockHttpClient, times(2)).close();
+
+    HttpUriRequest put = request.getAllValues().get(0);
+    assertTrue("Template not installed first", put instanceof HttpPut);
+    assertEquals("Wrong template uri", new URI("http://localhost:8200/_template/logstash-plugin-jenkins"), put.getURI());
+    assertEquals("Wrong auth", "Basic dXNlcm5hbWU6cGFzc3dvcmQ=", put.getFirstHeader("Authorization").getValue());
+    assertTrue("Event not sent", request.getAllValues().get(1) instanceof HttpPost);
+    assertTrue("Event not sent", request.getAllValues().get(2) instanceof HttpPost);
+  }
+
+  @Test
+  public void pushTemplateFailureIsNotFatal() throws Exception {
+    dao = createDao("http://localhost", 8200, "/jenkins/logstash", "", "", new IndexerOptions());
+
+    when(mockStatusLine.getStatusCode()).thenReturn(403, 201);
+    when(mockResponse.getEntity()).thenReturn(new StringEntity("Forbidden", ContentType.TEXT_PLAIN));
+    when(mockHttpClient.execute(any(HttpUriRequest.class))).thenReturn(mockResponse);
+
+    // Unit under test
+    dao.push("{ 'foo': 'bar' }");
+
+    // Verify results
+    verify(mockClientBuilder).build();
+    verify(mockHttpClient, times(2)).execute(any(HttpUriRequest.class));
+    verify(mockResponse, times(2)).close();
+    verify(mockHttpClient).close();
+  }
+
+  @Test
+  public void pushRetriesTemplateAfterFailure() throws Exception {
+    dao = createDao("http://localhost", 8200, "/jenkins/logstash", "", "", new IndexerOptions());
+    dao.templateRetryMillis = 0;
+
+    when(mockStatusLine.getStatusCode()).thenReturn(503, 503, 201, 200, 201);
+    when(mockResponse.getEntity()).thenReturn(new StringEntity("Service Unavailable", ContentType.TEXT_PLAIN));
+    when(mockHttpClient.execute(any(HttpUriRequest.class))).thenReturn(mockResponse);
+
+    // Unit under test
+    dao.push("{ 'foo': 'bar' }");
+    dao.push("{ 'foo': 'bar' }");
+    dao.push("{ 'foo': 'bar' }");
+
+    // Verify results
+    ArgumentCaptor<HttpUriRequest> request = ArgumentCaptor.forClass(HttpUriRequest.class);
+    verify(mockClientBuilder, times(3)).build();
+    verify(mockHttpClient, times(5)).execute(request.capture());
+    verify(mockResponse, times(5)).close();
+    verify(mockHttpClient, times(3)).close();
+    assertTrue("Template not installed first", request.getAllValues().get(0) instanceof HttpPut);
+    assertTrue("Event not sent", request.getAllValues().get(1) instanceof HttpPost);
+    assertTrue("Template not installed again", request.getAllValues().get(2) instanceof HttpPut);
+    assertTrue("Event not sent", request.getAllValues().get(3) instanceof HttpPost);
+    assertTrue("Template installed twice", request.getAllValues().get(4) instanceof HttpPost);
+  }
 }
@@ -0,0 +1,110 @@
+package jenkins.plugins.logstash.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+public class EventSplitterTest {
+  static final String DATA = "{\"projectName\":\"foo\",\"url\":\"job/foo/1/\"}";
+
+  static String event(String data, String... lines) {
+    StringBuilder message = new StringBuilder();
+    for (String line : lines) {
+      message.append(message.length() == 0 ? "" : ",").append('"').append(line).append('"');
+    }
+    return "{\"data\":" + data + ",\"message\":[" + message + "],\"source\":\"jenkins\",\"event_id\":\"0123456789abcdef\"}";
+  }
+
+  @Test
+  public void smallEventIsUnchanged() throws Exception {
+    String event = event(DATA, "LINE 1", "LINE 2");
+
+    // Unit under test
+    List<String> events = EventSplitter.split(event, 1024);
+
+    // Verify results
+    assertEquals("Event was changed", Arrays.asList(event), events);
+  }
+
+  @Test
+  public void noLimit() throws Exception {
+    String event = event(DATA, StringUtils.repeat("x", 10000));
+
+    // Unit under test
+    List<String> events = EventSplitter.split(event, 0);
+
+    // Verify results
+    assertEquals("Event was changed", Arrays.asList(event), events);
+  }
+
+  @Test
+  public void largeEventIsSplitIntoNumberedParts() throws Exception {
+    String line = StringUtils.repeat("x", 100);
+    String event = event(DATA, line, line, line, line);
+
+    // Unit under test
+    List<String> events = EventSplitter.split(event, 400);
+
+    // Verify results
+    assertEquals("Wrong number of parts", 2, events.size());
+    for (int i = 0; i < events.size(); i++) {
+      assertTrue("Part too large: " + events.get(i), EventSplitter.utf8Length(events.get(i)) <= 400);
+      JsonObject part = new JsonParser().parse(events.get(i)).getAsJsonObject();
+      assertEquals("Wrong lines", 2, part.getAsJsonArray("message").size());
+      assertEquals("Wrong event id", "0123456789abcdef-" + (i + 1), part.get("event_id").getAsString());
+      assertEquals("Wrong part", i + 1, part.get("event_part").getAsInt());
+      assertEquals("Wrong part count", 2, part.get("event_parts").getAsInt());
+      assertEquals("Build data missing", "foo", part.getAsJsonObject("data").get("projectName").getAsString());
+    }
+  }
+
+  @Test
+  public void longLineIsCut() throws Exception {
+    String line = StringUtils.repeat("\u00e9\\\"", 200);
+    String event = event(DATA, line);
+
+    // Unit under test
+    List<String> events = EventSplitter.split(event, 400);
+
+    // Verify results
+    StringBuilder joined = new StringBuilder();
+    for (String part : events) {
+      assertTrue("Part too large: " + part, EventSplitter.utf8Length(part) <= 400);
+      joined.append(new JsonParser().parse(part).getAsJsonObject().getAsJsonArray("message").get(0).getAsString());
+    }
+    assertEquals("Line was changed", StringUtils.repeat("\u00e9\"", 200), joined.toString());
+  }
+
+  @Test
+  public void largeBuildDataIsDropped() throws Exception {
+    String data = "{\"projectName\":\"foo\",\"buildVariables\":{\"LONG\":\"" + StringUtils.repeat("v", 300) + "\"}}";
+    String event = event(data, "LINE 1", "LINE 2");
+
+    // Unit under test
+    List<String> events = EventSplitter.split(event, 400);
+
+    // Verify results
+    assertEquals("Wrong number of parts", 1, events.size());
+    JsonObject part = new JsonParser().parse(events.get(0)).getAsJsonObject();
+    assertFalse("Build data was kept", part.has("data"));
+    assertEquals("Wrong lines", 2, part.getAsJsonArray("message").size());
+    assertEquals("Wrong source", "jenkins", part.get("source").getAsString());
+  }
+
+  @Test
+  public void encodedLength() throws Exception {
+    // Unit under test and verify results
+    assertEquals("Wrong length", new JsonPrimitive("a\"\n\u0001\u00e9\u2028\ud83d\ude00").toString().getBytes("UTF-8").length,
+      EventSplitter.encodedLength("a\"\n\u0001\u00e9\u2028\ud83d\ude00"));
+  }
+}
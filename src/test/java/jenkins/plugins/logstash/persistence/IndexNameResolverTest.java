@@ -0,0 +1,72 @@
+package jenkins.plugins.logstash.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Calendar;
+
+import org.junit.Test;
+
+public class IndexNameResolverTest {
+  static final String EVENT = "{\"data\":{},\"message\":[\"LINE 1\"],\"@timestamp\":\"%s\",\"@version\":1}";
+
+  @Test
+  public void isPattern() throws Exception {
+    assertTrue("Pattern not detected", IndexNameResolver.isPattern("jenkins-%{+YYYY.MM.dd}"));
+    assertFalse("Plain index detected as pattern", IndexNameResolver.isPattern("jenkins"));
+    assertFalse("Null detected as pattern", IndexNameResolver.isPattern(null));
+  }
+
+  @Test
+  public void dateFormatConversion() throws Exception {
+    IndexNameResolver resolver = new IndexNameResolver("jenkins-%{+YYYY.MM.dd}");
+
+    assertEquals("Wrong date format", "'jenkins-'yyyy.MM.dd", resolver.dateFormat);
+    assertEquals("Wrong bucket", Calendar.DAY_OF_MONTH, resolver.bucketField);
+    assertEquals("Wrong bucket", Calendar.HOUR_OF_DAY, new IndexNameResolver("logs-%{+YYYY.MM.dd.HH}-x").bucketField);
+    assertEquals("Wrong bucket", Calendar.MONTH, new IndexNameResolver("it's-%{+YYYY.MM}").bucketField);
+    assertEquals("Wrong bucket", Calendar.SECOND, new IndexNameResolver("logs-%{+YYYY.MM.dd.HH.mm.ss}").bucketField);
+    assertEquals("Wrong bucket", Calendar.MILLISECOND, new IndexNameResolver("logs-%{+HH.mm.ss.SSS}").bucketField);
+  }
+
+  @Test
+  public void resolveFromEventTimestamp() throws Exception {
+    IndexNameResolver resolver = new IndexNameResolver("jenkins-%{+YYYY.MM.dd}");
+
+    assertEquals("Wrong index", "jenkins-2015.03.01", resolver.resolve(String.format(EVENT, "2015-03-01T23:30:00+0000")));
+    // Index names are in UTC like Logstash's
+    assertEquals("Wrong index", "jenkins-2015.03.02", resolver.resolve(String.format(EVENT, "2015-03-01T23:30:00-0200")));
+    assertEquals("Wrong index", "jenkins-2015.02.28", resolver.resolve(String.format(EVENT, "2015-03-01T01:30:00+0200")));
+  }
+
+  @Test
+  public void resolveCachesBucket() throws Exception {
+    IndexNameResolver resolver = new IndexNameResolver("jenkins-%{+YYYY.MM.dd}");
+
+    String first = resolver.resolve(String.format(EVENT, "2015-03-01T08:00:00+0000"));
+    String sameDay = resolver.resolve(String.format(EVENT, "2015-03-01T20:00:00+0000"));
+    String sameTimestamp = resolver.resolve(String.format(EVENT, "2015-03-01T08:00:00+0000"));
+
+    assertSame("Bucket was not reused", first, sameDay);
+    assertSame("Timestamp was not cached", first, sameTimestamp);
+  }
+
+  @Test
+  public void resolveSecondBuckets() throws Exception {
+    IndexNameResolver resolver = new IndexNameResolver("jenkins-%{+YYYY.MM.dd.HH.mm.ss}");
+
+    assertEquals("Wrong index", "jenkins-2015.03.01.08.00.01", resolver.resolve(String.format(EVENT, "2015-03-01T08:00:01+0000")));
+    assertEquals("Wrong index", "jenkins-2015.03.01.08.00.02", resolver.resolve(String.format(EVENT, "2015-03-01T08:00:02+0000")));
+    assertEquals("Wrong index", "jenkins-2015.03.01.08.00.02.500", new IndexNameResolver("jenkins-%{+YYYY.MM.dd.HH.mm.ss.SSS}").resolve(1425196802500L));
+  }
+
+  @Test
+  public void resolveWithoutTimestamp() throws Exception {
+    IndexNameResolver resolver = new IndexNameResolver("jenkins-%{+YYYY}");
+    Calendar now = Calendar.getInstance(java.util.TimeZone.getTimeZone("UTC"));
+
+    assertEquals("Wrong index", "jenkins-" + now.get(Calendar.YEAR), resolver.resolve("{\"message\":[]}"));
+  }
+}
@@ -2,6 +2,8 @@ package jenkins.plugins.logstash.persistence;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import jenkins.plugins.logstash.persistence.LogstashIndexerDao.IndexerType;
 
 import org.junit.Test;
@@ -30,6 +32,19 @@ public class IndexerDaoFactoryTest {
     }
   }
 
+  @Test
+  public void refreshOnOptionsChange() throws Exception {
+    LogstashIndexerDao dao = IndexerDaoFactory.getInstance(IndexerType.ELASTICSEARCH, "http://localhost", 1234, "key", null, null, new IndexerOptions());
+    IndexerOptions changed = new IndexerOptions();
+    changed.setInstallTemplate(false);
+
+    // Unit under test
+    assertSame("Instance was recreated", dao,
+      IndexerDaoFactory.getInstance(IndexerType.ELASTICSEARCH, "http://localhost", 1234, "key", null, null, new IndexerOptions()));
+    assertNotSame("Instance was not recreated", dao,
+      IndexerDaoFactory.getInstance(IndexerType.ELASTICSEARCH, "http://localhost", 1234, "key", null, null, changed));
+  }
+
   @Test(expected = InstantiationException.class)
   public void failureNullType() throws Exception {
     try {
@@ -0,0 +1,170 @@
+package jenkins.plugins.logstash.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class OctetCountingSyslogSenderTest {
+  OctetCountingSyslogSender sender;
+  ByteArrayOutputStream received = new ByteArrayOutputStream();
+  @Mock SocketFactory mockSocketFactory;
+  @Mock Socket mockSocket;
+  @Mock OutputStream mockBrokenStream;
+  @Mock SSLSocket mockSslSocket;
+  @Mock ScheduledExecutorService mockWatchdog;
+  @Mock ScheduledFuture<?> mockWriteTimeout;
+
+  @Before
+  public void before() throws Exception {
+    sender = new OctetCountingSyslogSender(mockSocketFactory, "localhost", 6514, mockWatchdog);
+
+    when(mockSocketFactory.createSocket()).thenReturn(mockSocket);
+    when(mockSocket.getOutputStream()).thenReturn(received);
+    doReturn(mockWriteTimeout).when(mockWatchdog).schedule(any(Runnable.class), eq(OctetCountingSyslogSender.WRITE_TIMEOUT_MILLIS), eq(TimeUnit.MILLISECONDS));
+  }
+
+  @After
+  public void after() throws Exception {
+    verifyNoMoreInteractions(mockSocketFactory);
+    verifyNoMoreInteractions(mockSocket);
+    verifyNoMoreInteractions(mockBrokenStream);
+    verifyNoMoreInteractions(mockSslSocket);
+    verifyNoMoreInteractions(mockWatchdog);
+    verifyNoMoreInteractions(mockWriteTimeout);
+  }
+
+  @Test
+  public void frameCountsBytes() throws Exception {
+    // Unit under test
+    byte[] frame = OctetCountingSyslogSender.frame("<14>1 h\u00e9");
+
+    // Verify results
+    assertEquals("Wrong frame", "9 <14>1 h\u00e9", new String(frame, "UTF-8"));
+  }
+
+  @Test
+  public void sendBatchOnOneConnection() throws Exception {
+    // Unit under test
+    sender.send(Arrays.asList("first", "second\nline"));
+    sender.send(Collections.singletonList("third"));
+
+    // Verify results
+    verify(mockSocketFactory).createSocket();
+    verify(mockSocket).setKeepAlive(true);
+    verify(mockSocket).connect(new InetSocketAddress("localhost", 6514), OctetCountingSyslogSender.CONNECT_TIMEOUT_MILLIS);
+    verify(mockSocket).getOutputStream();
+    verify(mockWatchdog, times(2)).schedule(any(Runnable.class), eq(OctetCountingSyslogSender.WRITE_TIMEOUT_MILLIS), eq(TimeUnit.MILLISECONDS));
+    verify(mockWriteTimeout, times(2)).cancel(false);
+    assertEquals("Wrong frames", "5 first11 second\nline5 third", received.toString("UTF-8"));
+  }
+
+  @Test
+  public void sendVerifiesTlsHostName() throws Exception {
+    SSLParameters parameters = new SSLParameters();
+
+    // Initialize mocks
+    when(mockSocketFactory.createSocket()).thenReturn(mockSslSocket);
+    when(mockSslSocket.getSSLParameters()).thenReturn(parameters);
+    when(mockSslSocket.getOutputStream()).thenReturn(received);
+
+    // Unit under test
+    sender.send(Collections.singletonList("first"));
+
+    // Verify results
+    verify(mockSocketFactory).createSocket();
+    verify(mockSslSocket).setKeepAlive(true);
+    verify(mockSslSocket).getSSLParameters();
+    verify(mockSslSocket).setSSLParameters(parameters);
+    verify(mockSslSocket).connect(new InetSocketAddress("localhost", 6514), OctetCountingSyslogSender.CONNECT_TIMEOUT_MILLIS);
+    verify(mockSslSocket).getOutputStream();
+    verify(mockWatchdog).schedule(any(Runnable.class), eq(OctetCountingSyslogSender.WRITE_TIMEOUT_MILLIS), eq(TimeUnit.MILLISECONDS));
+    verify(mockWriteTimeout).cancel(false);
+    assertEquals("Wrong endpoint identification", "HTTPS", parameters.getEndpointIdentificationAlgorithm());
+    assertEquals("Wrong frames", "5 first", received.toString("UTF-8"));
+  }
+
+  @Test
+  public void sendClosesConnectionThatStopsTakingWrites() throws Exception {
+    sender.send(Collections.singletonList("first"));
+    ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+    verify(mockWatchdog).schedule(task.capture(), eq(OctetCountingSyslogSender.WRITE_TIMEOUT_MILLIS), eq(TimeUnit.MILLISECONDS));
+
+    // Unit under test
+    task.getValue().run();
+
+    // Verify results
+    verify(mockSocketFactory).createSocket();
+    verify(mockSocket).setKeepAlive(true);
+    verify(mockSocket).connect(new InetSocketAddress("localhost", 6514), OctetCountingSyslogSender.CONNECT_TIMEOUT_MILLIS);
+    verify(mockSocket).getOutputStream();
+    verify(mockSocket).close();
+    verify(mockWriteTimeout).cancel(false);
+  }
+
+  @Test
+  public void sendReconnectsWhenConnectionWasLost() throws Exception {
+    // Initialize mocks
+    when(mockSocket.getOutputStream()).thenReturn(mockBrokenStream, received);
+    sender.send(Collections.singletonList("first"));
+    doThrow(new SocketException("Broken pipe")).when(mockBrokenStream).write(any(byte[].class), anyInt(), anyInt());
+
+    // Unit under test
+    sender.send(Collections.singletonList("second"));
+
+    // Verify results
+    verify(mockSocketFactory, times(2)).createSocket();
+    verify(mockSocket, times(2)).setKeepAlive(true);
+    verify(mockSocket, times(2)).connect(new InetSocketAddress("localhost", 6514), OctetCountingSyslogSender.CONNECT_TIMEOUT_MILLIS);
+    verify(mockSocket, times(2)).getOutputStream();
+    verify(mockSocket).close();
+    verify(mockBrokenStream, times(2)).write(any(byte[].class), anyInt(), anyInt());
+    verify(mockBrokenStream).flush();
+    verify(mockWatchdog, times(3)).schedule(any(Runnable.class), eq(OctetCountingSyslogSender.WRITE_TIMEOUT_MILLIS), eq(TimeUnit.MILLISECONDS));
+    verify(mockWriteTimeout, times(3)).cancel(false);
+    assertEquals("Wrong frames", "6 second", received.toString("UTF-8"));
+  }
+
+  @Test(expected = IOException.class)
+  public void sendFailCannotConnect() throws Exception {
+    // Initialize mocks
+    doThrow(new SocketException("Connection refused")).when(mockSocket).connect(any(InetSocketAddress.class), anyInt());
+
+    // Unit under test
+    try {
+      sender.send(Collections.singletonList("first"));
+    } catch (IOException e) {
+      // Verify results
+      verify(mockSocketFactory).createSocket();
+      verify(mockSocket).setKeepAlive(true);
+      verify(mockSocket).connect(new InetSocketAddress("localhost", 6514), OctetCountingSyslogSender.CONNECT_TIMEOUT_MILLIS);
+      verify(mockSocket).close();
+      assertEquals("wrong error message", "SocketException: Connection refused", ExceptionUtils.getMessage(e));
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package jenkins.plugins.logstash.persistence;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class PublisherConfirmsTest {
+  Queue<byte[]> retry;
+  AtomicLong droppedCount;
+  PublisherConfirms<byte[]> confirms;
+
+  @Before
+  public void before() throws Exception {
+    retry = new ConcurrentLinkedQueue<byte[]>();
+    droppedCount = new AtomicLong();
+    confirms = new PublisherConfirms<byte[]>(3, retry, droppedCount);
+    for (long i = 1; i <= 3; i++) {
+      confirms.beforePublish(i, new byte[] { (byte) i }, 0);
+    }
+  }
+
+  @Test
+  public void multipleAck() throws Exception {
+    // Unit under test
+    confirms.handleAck(2, true);
+
+    // Verify results
+    assertEquals("Wrong unconfirmed count", 1, confirms.getOutstandingCount());
+    assertTrue("Acked message retried", retry.isEmpty());
+    // Two permits were released
+    confirms.beforePublish(4, new byte[] { 4 }, 0);
+    confirms.beforePublish(5, new byte[] { 5 }, 0);
+  }
+
+  @Test
+  public void singleNack() throws Exception {
+    // Unit under test
+    confirms.handleNack(2, false);
+
+    // Verify results
+    assertEquals("Wrong unconfirmed count", 2, confirms.getOutstandingCount());
+    assertEquals("Wrong retry count", 1, retry.size());
+    assertArrayEquals("Wrong message retried", new byte[] { 2 }, retry.peek());
+  }
+
+  @Test(expected = IOException.class)
+  public void boundedOutstanding() throws Exception {
+    // Unit under test
+    confirms.beforePublish(4, new byte[] { 4 }, 0);
+  }
+
+  @Test
+  public void abandonRetriesUnconfirmed() throws Exception {
+    confirms.handleAck(1, false);
+
+    // Unit under test
+    confirms.abandon();
+    confirms.handleAck(3, true);
+
+    // Verify results
+    assertEquals("Wrong unconfirmed count", 0, confirms.getOutstandingCount());
+    assertEquals("Wrong retry count", 2, retry.size());
+    assertArrayEquals("Wrong message retried", new byte[] { 2 }, retry.poll());
+    assertArrayEquals("Wrong message retried", new byte[] { 3 }, retry.poll());
+    assertEquals("Wrong dropped count", 0, droppedCount.get());
+  }
+
+  @Test
+  public void expireRetriesOldUnconfirmed() throws Exception {
+    confirms.handleAck(1, false);
+
+    // Unit under test
+    confirms.expire(60000);
+    confirms.expire(0);
+    confirms.handleAck(3, true);
+
+    // Verify results
+    assertEquals("Wrong unconfirmed count", 0, confirms.getOutstandingCount());
+    assertEquals("Wrong retry count", 2, retry.size());
+    assertArrayEquals("Wrong message retried", new byte[] { 2 }, retry.poll());
+    assertArrayEquals("Wrong message retried", new byte[] { 3 }, retry.poll());
+    // The permits were released
+    for (long i = 4; i <= 6; i++) {
+      confirms.beforePublish(i, new byte[] { (byte) i }, 0);
+    }
+  }
+
+  @Test
+  public void abandonCountsWhatRetryQueueCannotTake() throws Exception {
+    retry = new LinkedBlockingQueue<byte[]>(1);
+    confirms = new PublisherConfirms<byte[]>(3, retry, droppedCount);
+    for (long i = 1; i <= 3; i++) {
+      confirms.beforePublish(i, new byte[] { (byte) i }, 0);
+    }
+
+    // Unit under test
+    confirms.abandon();
+
+    // Verify results
+    assertEquals("Wrong unconfirmed count", 0, confirms.getOutstandingCount());
+    assertEquals("Wrong retry count", 1, retry.size());
+    assertEquals("Wrong dropped count", 2, droppedCount.get());
+  }
+}
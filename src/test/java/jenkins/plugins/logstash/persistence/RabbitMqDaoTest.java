@@ -1,10 +1,15 @@
 package jenkins.plugins.logstash.persistence;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.SocketException;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.exception.ExceptionUtils;
@@ -12,25 +17,43 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import com.rabbitmq.client.Address;
 import com.rabbitmq.client.AuthenticationFailureException;
 import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.RecoveryListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import com.rabbitmq.client.impl.recovery.AutorecoveringConnection;
+
+import jenkins.plugins.logstash.persistence.LogstashIndexerDao.IndexerType;
 
 @RunWith(MockitoJUnitRunner.class)
 public class RabbitMqDaoTest {
   RabbitMqDao dao;
   @Mock ConnectionFactory mockPool;
   @Mock Connection mockConnection;
+  @Mock AutorecoveringConnection mockRecoveringConnection;
   @Mock Channel mockChannel;
 
   RabbitMqDao createDao(String host, int port, String key, String username, String password) {
-    RabbitMqDao factory = new RabbitMqDao(mockPool, host, port, key, username, password);
+    IndexerOptions options = new IndexerOptions();
+    options.setRabbitPublisherConfirms(false);
+    return createDao(host, port, key, username, password, options);
+  }
+
+  RabbitMqDao createDao(String host, int port, String key, String username, String password, IndexerOptions options) {
+    RabbitMqDao factory = new RabbitMqDao(mockPool, host, port, key, username, password, options);
     verify(mockPool, atLeastOnce()).setHost(host);
     verify(mockPool, atLeastOnce()).setPort(port);
+    verify(mockPool, atLeastOnce()).setAutomaticRecoveryEnabled(true);
+    verify(mockPool, atLeastOnce()).setTopologyRecoveryEnabled(true);
 
     if (!StringUtils.isBlank(username) && !StringUtils.isBlank(password)) {
       verify(mockPool, atLeastOnce()).setUsername(username);
@@ -46,7 +69,7 @@ public class RabbitMqDaoTest {
     // Note that we can't run these tests in parallel
     dao = createDao("localhost", port, "logstash", "username", "password");
 
-    when(mockPool.newConnection()).thenReturn(mockConnection);
+    when(mockPool.newConnection(any(Address[].class))).thenReturn(mockConnection);
 
     when(mockConnection.createChannel()).thenReturn(mockChannel);
     when(mockConnection.isOpen()).thenReturn(true);
@@ -58,6 +81,7 @@ public class RabbitMqDaoTest {
   public void after() throws Exception {
     verifyNoMoreInteractions(mockPool);
     verifyNoMoreInteractions(mockConnection);
+    verifyNoMoreInteractions(mockRecoveringConnection);
     verifyNoMoreInteractions(mockChannel);
   }
 
@@ -117,14 +141,14 @@ public class RabbitMqDaoTest {
   @Test(expected = IOException.class)
   public void pushFailUnauthorized() throws Exception {
     // Initialize mocks
-    when(mockPool.newConnection()).thenThrow(new AuthenticationFailureException("Not authorized"));
+    when(mockPool.newConnection(any(Address[].class))).thenThrow(new AuthenticationFailureException("Not authorized"));
 
     // Unit under test
     try {
       dao.push("");
     } catch (IOException e) {
       // Verify results
-      verify(mockPool).newConnection();
+      verify(mockPool).newConnection(any(Address[].class));
       assertEquals("wrong error message",
         "AuthenticationFailureException: Not authorized", ExceptionUtils.getMessage(e));
       throw e;
@@ -135,14 +159,14 @@ public class RabbitMqDaoTest {
   @Test(expected = IOException.class)
   public void pushFailCannotConnect() throws Exception {
     // Initialize mocks
-    when(mockPool.newConnection()).thenThrow(new SocketException("Connection refused"));
+    when(mockPool.newConnection(any(Address[].class))).thenThrow(new SocketException("Connection refused"));
 
     // Unit under test
     try {
       dao.push("");
     } catch (IOException e) {
       // Verify results
-      verify(mockPool).newConnection();
+      verify(mockPool).newConnection(any(Address[].class));
       assertEquals("wrong error message",
         "SocketException: Connection refused", ExceptionUtils.getMessage(e));
       throw e;
@@ -159,13 +183,12 @@ public class RabbitMqDaoTest {
       dao.push("{}");
     } catch (IOException e) {
       // Verify results
-      verify(mockPool).newConnection();
+      verify(mockPool).newConnection(any(Address[].class));
       verify(mockConnection).createChannel();
       verify(mockConnection).isOpen();
-      verify(mockConnection).close();
       verify(mockChannel).queueDeclarePassive("logstash");
       verify(mockChannel).basicPublish("", "logstash", null, "{}".getBytes());
-      verify(mockChannel).isOpen();
+      verify(mockChannel, times(2)).isOpen();
       verify(mockChannel).close();
       assertEquals("wrong error message",
         "SocketException: Queue length limit exceeded", ExceptionUtils.getMessage(e));
@@ -181,14 +204,11 @@ public class RabbitMqDaoTest {
     dao.push(json);
 
     // Verify results
-    verify(mockPool).newConnection();
+    verify(mockPool).newConnection(any(Address[].class));
     verify(mockConnection).createChannel();
-    verify(mockConnection).isOpen();
-    verify(mockConnection).close();
     verify(mockChannel).queueDeclarePassive("logstash");
     verify(mockChannel).basicPublish("", "logstash", null, json.getBytes());
-    verify(mockChannel).isOpen();
-    verify(mockChannel).close();
+    verify(mockChannel, times(2)).isOpen();
   }
 
   @Test
@@ -200,14 +220,11 @@ public class RabbitMqDaoTest {
     dao.push(json);
 
     // Verify results
-    verify(mockPool).newConnection();
+    verify(mockPool).newConnection(any(Address[].class));
     verify(mockConnection).createChannel();
-    verify(mockConnection).isOpen();
-    verify(mockConnection).close();
     verify(mockChannel).queueDeclarePassive("logstash");
     verify(mockChannel).basicPublish("", "logstash", null, json.getBytes());
-    verify(mockChannel).isOpen();
-    verify(mockChannel).close();
+    verify(mockChannel, times(2)).isOpen();
   }
 
   @Test
@@ -220,14 +237,460 @@ public class RabbitMqDaoTest {
     dao.push(json);
 
     // Verify results
-    verify(mockPool).newConnection();
+    verify(mockPool).newConnection(any(Address[].class));
     verify(mockConnection, times(2)).createChannel();
+    verify(mockChannel).queueDeclarePassive("logstash");
+    verify(mockChannel).queueDeclare("logstash", true, false, false, null);
+    verify(mockChannel).basicPublish("", "logstash", null, json.getBytes());
+    verify(mockChannel, times(3)).isOpen();
+    verify(mockChannel).close();
+  }
+
+  @Test
+  public void pushReusesConnectionAndChannel() throws Exception {
+    String json = "{ 'foo': 'bar' }";
+
+    // Unit under test
+    dao.push(json);
+    dao.push(json);
+
+    // Verify results
+    verify(mockPool).newConnection(any(Address[].class));
+    verify(mockConnection).createChannel();
+    verify(mockConnection).isOpen();
+    verify(mockChannel).queueDeclarePassive("logstash");
+    verify(mockChannel, times(2)).basicPublish("", "logstash", null, json.getBytes());
+    verify(mockChannel, times(4)).isOpen();
+  }
+
+  @Test
+  public void closeWhenReplacedByFactory() throws Exception {
+    String json = "{ 'foo': 'bar' }";
+    dao.push(json);
+    IndexerDaoFactory.setInstance(dao);
+
+    // Unit under test
+    IndexerDaoFactory.getInstance(IndexerType.RABBIT_MQ, "localhost", 5672, "other", null, null, new IndexerOptions());
+
+    // Verify results
+    verify(mockPool).newConnection(any(Address[].class));
+    verify(mockConnection).createChannel();
+    verify(mockConnection).isOpen();
+    verify(mockConnection).close();
+    verify(mockChannel).queueDeclarePassive("logstash");
+    verify(mockChannel).basicPublish("", "logstash", null, json.getBytes());
+    verify(mockChannel, times(3)).isOpen();
+    verify(mockChannel).close();
+  }
+
+  @Test
+  public void pushAfterCloseDoesNotKeepConnection() throws Exception {
+    String json = "{ 'foo': 'bar' }";
+    dao.close();
+
+    // Unit under test
+    dao.push(json);
+
+    // Verify results
+    verify(mockPool).newConnection(any(Address[].class));
+    verify(mockConnection).createChannel();
     verify(mockConnection).isOpen();
     verify(mockConnection).close();
     verify(mockChannel).queueDeclarePassive("logstash");
-    verify(mockChannel).queueDeclare("logstash", true, false, false, null);
     verify(mockChannel).basicPublish("", "logstash", null, json.getBytes());
+    verify(mockChannel, times(3)).isOpen();
+    verify(mockChannel).close();
+  }
+
+  @Test
+  public void pushBuffersWhileRecovering() throws Exception {
+    // Initialize mocks
+    when(mockPool.newConnection(any(Address[].class))).thenReturn(mockRecoveringConnection);
+    when(mockRecoveringConnection.createChannel()).thenReturn(mockChannel);
+    when(mockRecoveringConnection.isOpen()).thenReturn(true);
+    dao.push("{\"n\":1}");
+
+    // The connection was lost and is being recovered
+    when(mockRecoveringConnection.isOpen()).thenReturn(false);
+
+    // Unit under test
+    dao.push("{\"n\":2}");
+
+    // The connection is back
+    when(mockRecoveringConnection.isOpen()).thenReturn(true);
+    dao.push("{\"n\":3}");
+
+    // Verify results
+    InOrder inOrder = inOrder(mockChannel);
+    inOrder.verify(mockChannel).basicPublish("", "logstash", null, "{\"n\":1}".getBytes());
+    inOrder.verify(mockChannel).basicPublish("", "logstash", null, "{\"n\":2}".getBytes());
+    inOrder.verify(mockChannel).basicPublish("", "logstash", null, "{\"n\":3}".getBytes());
+    verify(mockPool).newConnection(any(Address[].class));
+    verify(mockRecoveringConnection).createChannel();
+    verify(mockRecoveringConnection).addRecoveryListener(any(RecoveryListener.class));
+    verify(mockRecoveringConnection, times(2)).isOpen();
+    verify(mockRecoveringConnection).getCloseReason();
+    verify(mockChannel).queueDeclarePassive("logstash");
+    verify(mockChannel, times(4)).isOpen();
+    assertEquals("Wrong dropped count", 0, dao.getDroppedCount());
+  }
+
+  @Test
+  public void pushDropsWhenBufferIsFull() throws Exception {
+    IndexerOptions options = new IndexerOptions();
+    options.setRabbitPublisherConfirms(false);
+    options.setRabbitBufferSize(1);
+    dao = createDao("localhost", 5672, "logstash", null, null, options);
+
+    // Initialize mocks
+    when(mockPool.newConnection(any(Address[].class))).thenReturn(mockRecoveringConnection);
+    when(mockRecoveringConnection.createChannel()).thenReturn(mockChannel);
+    when(mockRecoveringConnection.isOpen()).thenReturn(true);
+    dao.push("{\"n\":1}");
+    when(mockRecoveringConnection.isOpen()).thenReturn(false);
+
+    // Unit under test
+    dao.push(Arrays.asList("{\"n\":2}", "{\"n\":3}"));
+
+    // Verify results
+    verify(mockPool).newConnection(any(Address[].class));
+    verify(mockRecoveringConnection).createChannel();
+    verify(mockRecoveringConnection).addRecoveryListener(any(RecoveryListener.class));
+    verify(mockRecoveringConnection).isOpen();
+    verify(mockRecoveringConnection).getCloseReason();
+    verify(mockChannel).queueDeclarePassive("logstash");
+    verify(mockChannel).basicPublish("", "logstash", null, "{\"n\":1}".getBytes());
+    verify(mockChannel, times(2)).isOpen();
+    assertEquals("Wrong dropped count", 1, dao.getDroppedCount());
+  }
+
+  @Test
+  public void pushFailsWhenRecoveryTakesTooLong() throws Exception {
+    dao.recoveryTimeoutMillis = 0;
+
+    // Initialize mocks
+    when(mockPool.newConnection(any(Address[].class))).thenReturn(mockRecoveringConnection, mockConnection);
+    when(mockRecoveringConnection.createChannel()).thenReturn(mockChannel);
+    when(mockRecoveringConnection.isOpen()).thenReturn(true);
+    dao.push("{\"n\":1}");
+    when(mockRecoveringConnection.isOpen()).thenReturn(false);
+    when(mockChannel.isOpen()).thenReturn(false);
+
+    // Unit under test
+    try {
+      dao.push("{\"n\":2}");
+      fail("Push did not fail");
+    } catch (IOException e) {
+      assertEquals("wrong error message", "RabbitMQ connection was lost", e.getMessage());
+    }
+    when(mockChannel.isOpen()).thenReturn(true);
+    dao.push("{\"n\":3}");
+
+    // Verify results
+    verify(mockPool, times(2)).newConnection(any(Address[].class));
+    verify(mockRecoveringConnection).createChannel();
+    verify(mockRecoveringConnection).addRecoveryListener(any(RecoveryListener.class));
+    verify(mockRecoveringConnection).isOpen();
+    verify(mockRecoveringConnection).getCloseReason();
+    verify(mockRecoveringConnection).abort();
+    verify(mockConnection).createChannel();
+    verify(mockChannel, times(2)).queueDeclarePassive("logstash");
+    verify(mockChannel).basicPublish("", "logstash", null, "{\"n\":1}".getBytes());
+    verify(mockChannel).basicPublish("", "logstash", null, "{\"n\":3}".getBytes());
+    verify(mockChannel, times(5)).isOpen();
+  }
+
+  @Test(expected = IOException.class)
+  public void pushFailsWhenConnectionIsClosed() throws Exception {
+    dao.push("{\"n\":1}");
+
+    // Initialize mocks
+    when(mockConnection.isOpen()).thenReturn(false);
+    when(mockConnection.getCloseReason()).thenReturn(new ShutdownSignalException(true, true, null, mockConnection));
+
+    // Unit under test
+    try {
+      dao.push("{\"n\":2}");
+    } catch (IOException e) {
+      // Verify results
+      verify(mockPool).newConnection(any(Address[].class));
+      verify(mockConnection).createChannel();
+      verify(mockConnection).isOpen();
+      verify(mockConnection).getCloseReason();
+      verify(mockConnection).abort();
+      verify(mockChannel).queueDeclarePassive("logstash");
+      verify(mockChannel).basicPublish("", "logstash", null, "{\"n\":1}".getBytes());
+      verify(mockChannel, times(3)).isOpen();
+      verify(mockChannel).close();
+      assertEquals("wrong error message", "RabbitMQ connection was lost: " + e.getCause().getMessage(), e.getMessage());
+      throw e;
+    }
+  }
+
+  @Test
+  public void getAddresses() throws Exception {
+    // Unit under test
+    Address[] addresses = RabbitMqDao.getAddresses("rabbit1:5673, rabbit2", 5672);
+
+    // Verify results
+    assertEquals("Wrong addresses", Arrays.asList(new Address("rabbit1", 5673), new Address("rabbit2", 5672)),
+      Arrays.asList(addresses));
+  }
+
+  @Test
+  public void getAddressesIpv6() throws Exception {
+    // Unit under test
+    Address[] addresses = RabbitMqDao.getAddresses("[::1]:5673, 2001:db8::1", 5672);
+
+    // Verify results
+    assertEquals("Wrong addresses", Arrays.asList(new Address("::1", 5673), new Address("2001:db8::1", 5672)),
+      Arrays.asList(addresses));
+  }
+
+  @Test
+  public void pushBatchSuccess() throws Exception {
+    // Unit under test
+    dao.push(Arrays.asList("{\"n\":1}", "{\"n\":2}"));
+
+    // Verify results
+    verify(mockPool).newConnection(any(Address[].class));
+    verify(mockConnection).createChannel();
+    verify(mockChannel).queueDeclarePassive("logstash");
+    verify(mockChannel).basicPublish("", "logstash", null, "{\"n\":1}".getBytes());
+    verify(mockChannel).basicPublish("", "logstash", null, "{\"n\":2}".getBytes());
+    verify(mockChannel, times(2)).isOpen();
+  }
+
+  @Test
+  public void pushConfirmsSuccess() throws Exception {
+    dao = createDao("localhost", 5672, "logstash", null, null, new IndexerOptions());
+    String json = "{ 'foo': 'bar' }";
+
+    // Initialize mocks
+    when(mockChannel.getNextPublishSeqNo()).thenReturn(1L, 2L);
+
+    // Unit under test
+    dao.push(json);
+    dao.push(json);
+
+    // Verify results
+    ArgumentCaptor<ConfirmListener> listener = ArgumentCaptor.forClass(ConfirmListener.class);
+    verify(mockPool).newConnection(any(Address[].class));
+    verify(mockConnection).createChannel();
+    verify(mockConnection).isOpen();
+    verify(mockChannel).queueDeclarePassive("logstash");
+    verify(mockChannel).confirmSelect();
+    verify(mockChannel).addConfirmListener(listener.capture());
+    verify(mockChannel, times(2)).getNextPublishSeqNo();
+    verify(mockChannel, times(2)).basicPublish("", "logstash", null, json.getBytes());
+    verify(mockChannel, times(4)).isOpen();
+    assertEquals("Wrong unconfirmed count", 2, ((PublisherConfirms<?>) listener.getValue()).getOutstandingCount());
+  }
+
+  @Test
+  public void pushRetriesNackedMessages() throws Exception {
+    dao = createDao("localhost", 5672, "logstash", null, null, new IndexerOptions());
+
+    // Initialize mocks
+    when(mockChannel.getNextPublishSeqNo()).thenReturn(1L, 2L, 3L);
+    dao.push("{\"n\":1}");
+    ArgumentCaptor<ConfirmListener> listener = ArgumentCaptor.forClass(ConfirmListener.class);
+    verify(mockChannel).addConfirmListener(listener.capture());
+
+    // The broker could not store the message
+    listener.getValue().handleNack(1, false);
+
+    // Unit under test
+    dao.push("{\"n\":2}");
+
+    // Verify results
+    InOrder inOrder = inOrder(mockChannel);
+    inOrder.verify(mockChannel).basicPublish("", "logstash", null, "{\"n\":1}".getBytes());
+    inOrder.verify(mockChannel).basicPublish("", "logstash", null, "{\"n\":1}".getBytes());
+    inOrder.verify(mockChannel).basicPublish("", "logstash", null, "{\"n\":2}".getBytes());
+    verify(mockPool).newConnection(any(Address[].class));
+    verify(mockConnection).createChannel();
+    verify(mockConnection).isOpen();
+    verify(mockChannel).queueDeclarePassive("logstash");
+    verify(mockChannel).confirmSelect();
+    verify(mockChannel, times(3)).getNextPublishSeqNo();
+    verify(mockChannel, times(4)).isOpen();
+  }
+
+  @Test
+  public void pushRetriesUnconfirmedMessages() throws Exception {
+    dao = createDao("localhost", 5672, "logstash", null, null, new IndexerOptions());
+    dao.confirmTimeoutMillis = 0;
+
+    // Initialize mocks
+    when(mockChannel.getNextPublishSeqNo()).thenReturn(1L, 2L, 3L, 4L);
+    dao.push("{\"n\":1}");
+
+    // Unit under test
+    dao.push("{\"n\":2}");
+    dao.push("{\"n\":3}");
+
+    // Verify results
+    InOrder inOrder = inOrder(mockChannel);
+    inOrder.verify(mockChannel).basicPublish("", "logstash", null, "{\"n\":1}".getBytes());
+    inOrder.verify(mockChannel).basicPublish("", "logstash", null, "{\"n\":2}".getBytes());
+    inOrder.verify(mockChannel).basicPublish("", "logstash", null, "{\"n\":1}".getBytes());
+    inOrder.verify(mockChannel).basicPublish("", "logstash", null, "{\"n\":3}".getBytes());
+    verify(mockPool).newConnection(any(Address[].class));
+    verify(mockConnection).createChannel();
+    verify(mockConnection, times(2)).isOpen();
+    verify(mockChannel).queueDeclarePassive("logstash");
+    verify(mockChannel).confirmSelect();
+    verify(mockChannel).addConfirmListener(any(ConfirmListener.class));
+    verify(mockChannel, times(4)).getNextPublishSeqNo();
+    verify(mockChannel, times(6)).isOpen();
+  }
+
+  @Test
+  public void pushRetriesNackedMessagesToTheirQueue() throws Exception {
+    IndexerOptions options = new IndexerOptions();
+    options.setRabbitShards(2);
+    dao = createDao("localhost", 5672, "logstash", null, null, options);
+    String build1 = "{\"data\":{\"url\":\"job/foo/1/\"},\"message\":[\"LINE 1\"]}";
+    String build2 = "{\"data\":{\"url\":\"job/foo/2/\"},\"message\":[\"LINE 1\"]}";
+
+    // Initialize mocks
+    when(mockChannel.getNextPublishSeqNo()).thenReturn(1L, 2L, 3L);
+    dao.push(build1);
+    ArgumentCaptor<ConfirmListener> listener = ArgumentCaptor.forClass(ConfirmListener.class);
+    verify(mockChannel).addConfirmListener(listener.capture());
+    listener.getValue().handleNack(1, false);
+
+    // Unit under test
+    dao.push(build2);
+
+    // Verify results
+    verify(mockPool).newConnection(any(Address[].class));
+    verify(mockConnection).createChannel();
+    verify(mockConnection).isOpen();
+    verify(mockChannel).queueDeclarePassive("logstash.0");
+    verify(mockChannel).queueDeclarePassive("logstash.1");
+    verify(mockChannel).confirmSelect();
+    verify(mockChannel, times(3)).getNextPublishSeqNo();
+    verify(mockChannel, times(2)).basicPublish("", dao.getRoutingKey(build1), null, build1.getBytes());
+    verify(mockChannel).basicPublish("", dao.getRoutingKey(build2), null, build2.getBytes());
+    verify(mockChannel, times(4)).isOpen();
+  }
+
+  @Test(expected = IOException.class)
+  public void pushFailsWithoutConfirms() throws Exception {
+    IndexerOptions options = new IndexerOptions();
+    options.setRabbitMaxOutstandingConfirms(1);
+    dao = createDao("localhost", 5672, "logstash", null, null, options);
+    dao.confirmTimeoutMillis = 0;
+
+    // Initialize mocks
+    when(mockChannel.getNextPublishSeqNo()).thenReturn(1L, 2L);
+
+    // Unit under test
+    try {
+      dao.push(Arrays.asList("{\"n\":1}", "{\"n\":2}"));
+    } catch (IOException e) {
+      // Verify results
+      verify(mockPool).newConnection(any(Address[].class));
+      verify(mockConnection).createChannel();
+      verify(mockConnection).isOpen();
+      verify(mockChannel).queueDeclarePassive("logstash");
+      verify(mockChannel).confirmSelect();
+      verify(mockChannel).addConfirmListener(any(ConfirmListener.class));
+      verify(mockChannel, times(2)).getNextPublishSeqNo();
+      verify(mockChannel).basicPublish("", "logstash", null, "{\"n\":1}".getBytes());
+      verify(mockChannel, times(2)).isOpen();
+      verify(mockChannel).close();
+      assertEquals("wrong error message", "RabbitMQ did not confirm published messages within 0ms", e.getMessage());
+      throw e;
+    }
+  }
+
+  @Test
+  public void pushShardedExchange() throws Exception {
+    IndexerOptions options = new IndexerOptions();
+    options.setRabbitPublisherConfirms(false);
+    options.setRabbitExchange("jenkins");
+    options.setRabbitShards(2);
+    dao = createDao("localhost", 5672, "logstash", null, null, options);
+    String build1 = "{\"data\":{\"projectName\":\"foo\",\"url\":\"job/foo/1/\"},\"message\":[\"LINE 1\"]}";
+    String build2 = "{\"data\":{\"projectName\":\"foo\",\"url\":\"job/foo/2/\"},\"message\":[\"LINE 1\"]}";
+
+    // Unit under test
+    dao.push(Arrays.asList(build1, build2));
+
+    // Verify results
+    verify(mockPool).newConnection(any(Address[].class));
+    verify(mockConnection).createChannel();
+    verify(mockChannel).exchangeDeclarePassive("jenkins");
+    verify(mockChannel).queueDeclarePassive("logstash.0");
+    verify(mockChannel).queueDeclarePassive("logstash.1");
+    verify(mockChannel).queueBind("logstash.0", "jenkins", "logstash.0");
+    verify(mockChannel).queueBind("logstash.1", "jenkins", "logstash.1");
+    verify(mockChannel).basicPublish("jenkins", dao.getRoutingKey(build1), null, build1.getBytes());
+    verify(mockChannel).basicPublish("jenkins", dao.getRoutingKey(build2), null, build2.getBytes());
+    verify(mockChannel, times(2)).isOpen();
+    assertEquals("Wrong queue", "logstash." + (("job/foo/1/".hashCode() & Integer.MAX_VALUE) % 2), dao.getRoutingKey(build1));
+    assertEquals("Same build routed to another queue", dao.getRoutingKey(build1),
+      dao.getRoutingKey(build1.replace("LINE 1", "LINE 2")));
+  }
+
+  @Test
+  public void pushJsonLinesBatch() throws Exception {
+    IndexerOptions options = new IndexerOptions();
+    options.setRabbitPublisherConfirms(false);
+    options.setRabbitMessageFormat(RabbitMqDao.MessageFormat.JSON_LINES);
+    dao = createDao("localhost", 5672, "logstash", null, null, options);
+
+    // Unit under test
+    dao.push(Arrays.asList("{\"n\":1}", "{\"n\":2}"));
+
+    // Verify results
+    verify(mockPool).newConnection(any(Address[].class));
+    verify(mockConnection).createChannel();
+    verify(mockChannel).queueDeclarePassive("logstash");
+    verify(mockChannel).basicPublish("", "logstash", null, "{\"n\":1}\n{\"n\":2}\n".getBytes());
+    verify(mockChannel, times(2)).isOpen();
+  }
+
+  @Test
+  public void pushCompressedJsonArrayPerShard() throws Exception {
+    IndexerOptions options = new IndexerOptions();
+    options.setRabbitPublisherConfirms(false);
+    options.setRabbitShards(2);
+    options.setRabbitMessageFormat(RabbitMqDao.MessageFormat.JSON_ARRAY);
+    options.setRabbitCompression(true);
+    dao = createDao("localhost", 5672, "logstash", null, null, options);
+    String build1 = "{\"data\":{\"url\":\"job/foo/1/\"},\"message\":[\"LINE 1\"]}";
+    String build2 = "{\"data\":{\"url\":\"job/foo/2/\"},\"message\":[\"LINE 1\"]}";
+    String build1Again = build1.replace("LINE 1", "LINE 2");
+
+    // Unit under test
+    dao.push(Arrays.asList(build1, build2, build1Again));
+
+    // Verify results
+    ArgumentCaptor<byte[]> body1 = ArgumentCaptor.forClass(byte[].class);
+    ArgumentCaptor<byte[]> body2 = ArgumentCaptor.forClass(byte[].class);
+    verify(mockPool).newConnection(any(Address[].class));
+    verify(mockConnection).createChannel();
+    verify(mockChannel).queueDeclarePassive("logstash.0");
+    verify(mockChannel).queueDeclarePassive("logstash.1");
+    verify(mockChannel).basicPublish(eq(""), eq(dao.getRoutingKey(build1)), eq(RabbitMqDao.GZIP_PROPERTIES), body1.capture());
+    verify(mockChannel).basicPublish(eq(""), eq(dao.getRoutingKey(build2)), eq(RabbitMqDao.GZIP_PROPERTIES), body2.capture());
     verify(mockChannel, times(2)).isOpen();
-    verify(mockChannel, times(2)).close();
+    assertEquals("Wrong message", "[" + build1 + "," + build1Again + "]", gunzip(body1.getValue()));
+    assertEquals("Wrong message", "[" + build2 + "]", gunzip(body2.getValue()));
+  }
+
+  private static String gunzip(byte[] body) throws IOException {
+    GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(body));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    int read;
+    while ((read = in.read(buffer)) > 0) {
+      out.write(buffer, 0, read);
+    }
+    return out.toString();
   }
 }
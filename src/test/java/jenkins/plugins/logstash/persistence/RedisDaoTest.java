@@ -1,7 +1,8 @@
 package jenkins.plugins.logstash.persistence;
 
 import static org.junit.Assert.assertEquals;
-import static org.mockito.Mockito.doThrow;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
@@ -14,20 +15,35 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import redis.clients.jedis.Client;
+import redis.clients.jedis.HostAndPort;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisCluster;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Pipeline;
 import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Set;
 
 @RunWith(MockitoJUnitRunner.class)
 public class RedisDaoTest {
   RedisDao dao;
   @Mock JedisPool mockPool;
   @Mock Jedis mockJedis;
+  @Mock JedisCluster mockCluster;
+  @Mock Client mockClient;
 
   RedisDao createDao(String host, int port, String key, String username, String password) {
-    return new RedisDao(mockPool, host, port, key, username, password);
+    return createDao(host, port, key, username, password, new IndexerOptions());
+  }
+
+  RedisDao createDao(String host, int port, String key, String username, String password, IndexerOptions options) {
+    return new RedisDao(mockPool, mockCluster, host, port, key, username, password, options);
   }
 
   @Before
@@ -42,6 +58,7 @@ public class RedisDaoTest {
   public void after() throws Exception {
     verifyNoMoreInteractions(mockPool);
     verifyNoMoreInteractions(mockJedis);
+    verifyNoMoreInteractions(mockCluster);
   }
 
   @Test(expected = IllegalArgumentException.class)
@@ -97,29 +114,141 @@ public class RedisDaoTest {
     assertEquals("Wrong password", "password", dao.password);
   }
 
-  @Test(expected = IOException.class)
-  public void pushFailUnauthorized() throws Exception {
+  @Test(expected = IllegalArgumentException.class)
+  public void constructorFailSentinelWithoutMaster() throws Exception {
+    IndexerOptions options = new IndexerOptions();
+    options.setRedisTopology(RedisDao.Topology.SENTINEL);
+
+    try {
+      createDao("sentinel1,sentinel2", 26379, "logstash", null, null, options);
+    } catch (IllegalArgumentException e) {
+      assertEquals("Wrong error message was thrown", "redis master name is required", e.getMessage());
+      throw e;
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void constructorFailClusterWithPassword() throws Exception {
+    IndexerOptions options = new IndexerOptions();
+    options.setRedisTopology(RedisDao.Topology.CLUSTER);
+
+    try {
+      createDao("node1,node2", 6379, "logstash", "username", "password", options);
+    } catch (IllegalArgumentException e) {
+      assertEquals("Wrong error message was thrown", "redis cluster does not support passwords", e.getMessage());
+      throw e;
+    }
+  }
+
+  @Test
+  public void getNodes() throws Exception {
+    // Unit under test
+    Set<HostAndPort> nodes = RedisDao.getNodes("sentinel1:26380, sentinel2,10.0.0.3:26381", 26379);
+
+    // Verify results
+    Iterator<HostAndPort> iterator = nodes.iterator();
+    assertEquals("Wrong node count", 3, nodes.size());
+    assertEquals("Wrong node", new HostAndPort("sentinel1", 26380), iterator.next());
+    assertEquals("Wrong node", new HostAndPort("sentinel2", 26379), iterator.next());
+    assertEquals("Wrong node", new HostAndPort("10.0.0.3", 26381), iterator.next());
+  }
+
+  @Test
+  public void getNodesIpv6() throws Exception {
+    // Unit under test
+    Set<HostAndPort> nodes = RedisDao.getNodes("::1, [2001:db8::1]:6380, 2001:db8::2", 6379);
+
+    // Verify results
+    Iterator<HostAndPort> iterator = nodes.iterator();
+    assertEquals("Wrong node count", 3, nodes.size());
+    assertEquals("Wrong node", new HostAndPort("::1", 6379), iterator.next());
+    assertEquals("Wrong node", new HostAndPort("2001:db8::1", 6380), iterator.next());
+    assertEquals("Wrong node", new HostAndPort("2001:db8::2", 6379), iterator.next());
+  }
+
+  @Test
+  public void pushClusterSuccess() throws Exception {
+    IndexerOptions options = new IndexerOptions();
+    options.setRedisTopology(RedisDao.Topology.CLUSTER);
+    dao = createDao("node1,node2", 6379, "logstash", null, null, options);
+    String json = "{ 'foo': 'bar' }";
+
     // Initialize mocks
-    when(mockJedis.auth("password")).thenThrow(new JedisConnectionException("Unauthorized"));
+    when(mockCluster.rpush("logstash", json)).thenReturn(1L);
 
     // Unit under test
+    dao.push(json);
+
+    // Verify results
+    verify(mockCluster).rpush("logstash", json);
+  }
+
+  @Test(expected = IOException.class)
+  public void pushClusterFail() throws Exception {
+    IndexerOptions options = new IndexerOptions();
+    options.setRedisTopology(RedisDao.Topology.CLUSTER);
+    dao = createDao("node1,node2", 6379, "logstash", null, null, options);
+    String json = "{ 'foo': 'bar' }";
+
+    // Initialize mocks
+    when(mockCluster.rpush("logstash", json)).thenThrow(new JedisConnectionException("Too many Cluster redirections?"));
+
     try {
-      dao.push("");
+      // Unit under test
+      dao.push(json);
     } catch (IOException e) {
       // Verify results
-      verify(mockPool).getResource();
-      verify(mockPool).returnBrokenResource(mockJedis);
-      verify(mockJedis).auth("password");
-      assertEquals("wrong error message",
-        "IOException: redis.clients.jedis.exceptions.JedisConnectionException: Unauthorized", ExceptionUtils.getMessage(e));
+      verify(mockCluster).rpush("logstash", json);
       throw e;
     }
   }
 
+  @Test
+  public void closeDestroysPool() throws Exception {
+    // Unit under test
+    dao.close();
+
+    // Verify results
+    verify(mockPool).destroy();
+  }
+
+  @Test
+  public void closeClosesCluster() throws Exception {
+    IndexerOptions options = new IndexerOptions();
+    options.setRedisTopology(RedisDao.Topology.CLUSTER);
+    dao = createDao("node1,node2", 6379, "logstash", null, null, options);
+
+    // Unit under test
+    dao.close();
+
+    // Verify results
+    verify(mockCluster).close();
+  }
+
+  @Test
+  public void poolConfig() throws Exception {
+    IndexerOptions options = new IndexerOptions();
+    options.setRedisMaxTotal(16);
+    options.setRedisMinIdle(2);
+    options.setRedisTestOnBorrow(true);
+    options.setRedisIdleTimeout(300);
+
+    // Unit under test
+    JedisPoolConfig config = RedisDao.getPoolConfig(options);
+
+    // Verify results
+    assertEquals("Wrong max total", 16, config.getMaxTotal());
+    assertEquals("Wrong max idle", 16, config.getMaxIdle());
+    assertEquals("Wrong min idle", 2, config.getMinIdle());
+    assertTrue("Not tested on borrow", config.getTestOnBorrow());
+    assertEquals("Wrong idle timeout", 300000L, config.getSoftMinEvictableIdleTimeMillis());
+  }
+
   @Test(expected = IOException.class)
-  public void pushFailCantConnect() throws Exception {
+  public void pushFailUnauthorized() throws Exception {
     // Initialize mocks
-    doThrow(new JedisConnectionException("Connection refused")).when(mockJedis).connect();
+    // The pool authenticates new connections
+    when(mockPool.getResource()).thenThrow(new JedisConnectionException("Unauthorized"));
 
     // Unit under test
     try {
@@ -127,11 +256,8 @@ public class RedisDaoTest {
     } catch (IOException e) {
       // Verify results
       verify(mockPool).getResource();
-      verify(mockPool).returnBrokenResource(mockJedis);
-      verify(mockJedis).auth("password");
-      verify(mockJedis).connect();
       assertEquals("wrong error message",
-        "IOException: redis.clients.jedis.exceptions.JedisConnectionException: Connection refused", ExceptionUtils.getMessage(e));
+        "IOException: redis.clients.jedis.exceptions.JedisConnectionException: Unauthorized", ExceptionUtils.getMessage(e));
       throw e;
     }
   }
@@ -150,8 +276,6 @@ public class RedisDaoTest {
       // Verify results
       verify(mockPool).getResource();
       verify(mockPool).returnBrokenResource(mockJedis);
-      verify(mockJedis).auth("password");
-      verify(mockJedis).connect();
       verify(mockJedis).rpush("logstash", json);
       assertEquals("wrong error message",
         "IOException: redis.clients.jedis.exceptions.JedisConnectionException: Push failed", ExceptionUtils.getMessage(e));
@@ -172,10 +296,7 @@ public class RedisDaoTest {
     // Verify results
     verify(mockPool).getResource();
     verify(mockPool).returnResource(mockJedis);
-    verify(mockJedis).auth("password");
-    verify(mockJedis).connect();
     verify(mockJedis).rpush("logstash", json);
-    verify(mockJedis).disconnect();
   }
 
   @Test
@@ -192,8 +313,197 @@ public class RedisDaoTest {
     // Verify results
     verify(mockPool).getResource();
     verify(mockPool).returnResource(mockJedis);
-    verify(mockJedis).connect();
     verify(mockJedis).rpush("logstash", json);
-    verify(mockJedis).disconnect();
+  }
+
+  @Test
+  public void pushBatchSuccess() throws Exception {
+    // Initialize mocks
+    when(mockJedis.rpush("logstash", "{\"n\":1}", "{\"n\":2}", "{\"n\":3}")).thenReturn(5L);
+
+    // Unit under test
+    dao.push(Arrays.asList("{\"n\":1}", "{\"n\":2}", "{\"n\":3}"));
+
+    // Verify results
+    verify(mockPool).getResource();
+    verify(mockPool).returnResource(mockJedis);
+    verify(mockJedis).rpush("logstash", "{\"n\":1}", "{\"n\":2}", "{\"n\":3}");
+  }
+
+  @Test(expected = IOException.class)
+  public void pushBatchFailShortList() throws Exception {
+    // Initialize mocks
+    when(mockJedis.rpush("logstash", "{\"n\":1}", "{\"n\":2}")).thenReturn(1L);
+
+    try {
+      // Unit under test
+      dao.push(Arrays.asList("{\"n\":1}", "{\"n\":2}"));
+    } catch (IOException e) {
+      // Verify results
+      verify(mockPool).getResource();
+      verify(mockPool).returnResource(mockJedis);
+      verify(mockJedis).rpush("logstash", "{\"n\":1}", "{\"n\":2}");
+      assertEquals("wrong error message", "Failed to push results", e.getMessage());
+      throw e;
+    }
+  }
+
+  @Test
+  public void pushStreamSuccess() throws Exception {
+    IndexerOptions options = new IndexerOptions();
+    options.setRedisDataType(RedisDao.DataType.STREAM);
+    options.setRedisStreamMaxLength(1000);
+    dao = createDao("localhost", 6379, "logstash", null, null, options);
+
+    // Initialize mocks
+    when(mockJedis.evalsha(RedisDao.XADD_SCRIPT_SHA, Arrays.asList("logstash"), Arrays.asList("1000", "{\"n\":1}", "{\"n\":2}")))
+      .thenReturn(2L);
+
+    // Unit under test
+    dao.push(Arrays.asList("{\"n\":1}", "{\"n\":2}"));
+
+    // Verify results
+    verify(mockPool).getResource();
+    verify(mockPool).returnResource(mockJedis);
+    verify(mockJedis).evalsha(RedisDao.XADD_SCRIPT_SHA, Arrays.asList("logstash"), Arrays.asList("1000", "{\"n\":1}", "{\"n\":2}"));
+  }
+
+  @Test
+  public void pushStreamLoadsScript() throws Exception {
+    IndexerOptions options = new IndexerOptions();
+    options.setRedisDataType(RedisDao.DataType.STREAM);
+    dao = createDao("localhost", 6379, "logstash", null, null, options);
+    String json = "{ 'foo': 'bar' }";
+
+    // Initialize mocks
+    when(mockJedis.evalsha(RedisDao.XADD_SCRIPT_SHA, Arrays.asList("logstash"), Arrays.asList("1000000", json)))
+      .thenThrow(new JedisDataException("NOSCRIPT No matching script. Please use EVAL."));
+    when(mockJedis.eval(RedisDao.XADD_SCRIPT, Arrays.asList("logstash"), Arrays.asList("1000000", json))).thenReturn(1L);
+
+    // Unit under test
+    dao.push(json);
+
+    // Verify results
+    verify(mockPool).getResource();
+    verify(mockPool).returnResource(mockJedis);
+    verify(mockJedis).evalsha(RedisDao.XADD_SCRIPT_SHA, Arrays.asList("logstash"), Arrays.asList("1000000", json));
+    verify(mockJedis).eval(RedisDao.XADD_SCRIPT, Arrays.asList("logstash"), Arrays.asList("1000000", json));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void constructorFailClusterStream() throws Exception {
+    IndexerOptions options = new IndexerOptions();
+    options.setRedisTopology(RedisDao.Topology.CLUSTER);
+    options.setRedisDataType(RedisDao.DataType.STREAM);
+
+    try {
+      createDao("node1,node2", 6379, "logstash", null, null, options);
+    } catch (IllegalArgumentException e) {
+      assertEquals("Wrong error message was thrown", "redis cluster only supports the list data type", e.getMessage());
+      throw e;
+    }
+  }
+
+  @Test
+  public void pushBacklogWatermarks() throws Exception {
+    IndexerOptions options = new IndexerOptions();
+    options.setRedisHighWatermark(10);
+    options.setRedisLowWatermark(5);
+    dao = createDao("localhost", 6379, "logstash", null, null, options);
+    dao.backlogSampleIntervalMillis = 0;
+    String json = "{ 'foo': 'bar' }";
+
+    // Initialize mocks
+    when(mockJedis.llen("logstash")).thenReturn(10L, 7L, 4L);
+    when(mockJedis.rpush("logstash", json)).thenReturn(5L);
+
+    // Unit under test
+    dao.push(json);
+    dao.push(json);
+    dao.push(json);
+
+    // Verify results
+    verify(mockPool, times(3)).getResource();
+    verify(mockPool, times(3)).returnResource(mockJedis);
+    verify(mockJedis, times(3)).llen("logstash");
+    // The first event above the high watermark is sampled, the second dropped
+    verify(mockJedis, times(2)).rpush("logstash", json);
+    assertEquals("Wrong dropped count", 1, dao.getDroppedCount());
+  }
+
+  @Test
+  public void pushBacklogFullSamplesEvents() throws Exception {
+    IndexerOptions options = new IndexerOptions();
+    options.setRedisHighWatermark(10);
+    dao = createDao("localhost", 6379, "logstash", null, null, options);
+    String[] events = new String[25];
+    for (int i = 0; i < events.length; i++) {
+      events[i] = "{\"n\":" + i + "}";
+    }
+
+    // Initialize mocks
+    when(mockJedis.llen("logstash")).thenReturn(20L);
+    when(mockJedis.rpush("logstash", events[0], events[10], events[20])).thenReturn(23L);
+
+    // Unit under test
+    dao.push(Arrays.asList(events));
+
+    // Verify results
+    verify(mockPool).getResource();
+    verify(mockPool).returnResource(mockJedis);
+    verify(mockJedis).llen("logstash");
+    verify(mockJedis).rpush("logstash", events[0], events[10], events[20]);
+    assertEquals("Wrong dropped count", 22, dao.getDroppedCount());
+  }
+
+  @Test
+  public void pushBacklogSampledPeriodically() throws Exception {
+    IndexerOptions options = new IndexerOptions();
+    options.setRedisHighWatermark(10);
+    dao = createDao("localhost", 6379, "logstash", null, null, options);
+    String json = "{ 'foo': 'bar' }";
+
+    // Initialize mocks
+    when(mockJedis.llen("logstash")).thenReturn(1L);
+    when(mockJedis.rpush("logstash", json)).thenReturn(2L);
+
+    // Unit under test
+    dao.push(json);
+    dao.push(json);
+
+    // Verify results
+    verify(mockPool, times(2)).getResource();
+    verify(mockPool, times(2)).returnResource(mockJedis);
+    verify(mockJedis).llen("logstash");
+    verify(mockJedis, times(2)).rpush("logstash", json);
+    assertEquals("Wrong dropped count", 0, dao.getDroppedCount());
+  }
+
+  @Test
+  public void pushChannelSuccess() throws Exception {
+    IndexerOptions options = new IndexerOptions();
+    options.setRedisDataType(RedisDao.DataType.CHANNEL);
+    options.setRedisHighWatermark(10);
+    dao = createDao("localhost", 6379, "logstash", null, null, options);
+
+    // Initialize mocks
+    // Pipeline's methods can not be stubbed, it is driven through a mock client instead
+    Pipeline pipeline = new Pipeline();
+    pipeline.setClient(mockClient);
+    when(mockJedis.pipelined()).thenReturn(pipeline);
+    when(mockClient.getAll()).thenReturn(Arrays.<Object>asList(2L, 3L));
+
+    // Unit under test
+    dao.push(Arrays.asList("{\"n\":1}", "{\"n\":2}"));
+
+    // Verify results
+    verify(mockPool).getResource();
+    verify(mockPool).returnResource(mockJedis);
+    verify(mockJedis).pipelined();
+    verify(mockClient).publish("logstash", "{\"n\":1}");
+    verify(mockClient).publish("logstash", "{\"n\":2}");
+    verify(mockClient).getAll();
+    verifyNoMoreInteractions(mockClient);
+    assertEquals("Wrong subscriber count", 3, dao.getSubscriberCount());
   }
 }
@@ -1,15 +1,38 @@
 package jenkins.plugins.logstash.persistence;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 import com.cloudbees.syslog.Facility;
 import com.cloudbees.syslog.MessageFormat;
 import com.cloudbees.syslog.Severity;
 import com.cloudbees.syslog.sender.UdpSyslogMessageSender;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 
 
 @RunWith(MockitoJUnitRunner.class)
@@ -21,6 +44,8 @@ public class SyslogDaoTest {
   int port = 514;
   UdpSyslogMessageSender testSyslogSend = new UdpSyslogMessageSender();
   @Mock UdpSyslogMessageSender mockUdpSyslogMessageSender;
+  @Mock OctetCountingSyslogSender mockStreamSender;
+  @Captor ArgumentCaptor<List<String>> messagesCaptor;
  	  
   @Before
   public void before() throws Exception {    
@@ -46,6 +71,16 @@ public class SyslogDaoTest {
     verify(mockUdpSyslogMessageSender, times(1)).setMessageFormat(MessageFormat.RFC_5424);
   }
 
+  // The sender is configured once, not on every message.
+  @Test
+  public void syslogConfigOnce() throws Exception {
+    dao.push(data);
+
+    verify(mockUdpSyslogMessageSender, times(2)).sendMessage(" @cee: " + data);
+    verify(mockUdpSyslogMessageSender, times(1)).setSyslogServerHostname(host);
+    verify(mockUdpSyslogMessageSender, times(1)).setMessageFormat(MessageFormat.RFC_5424);
+  }
+
   // Send a real Syslog message.
   @Test
   public void syslogSend() throws Exception {
@@ -60,6 +95,157 @@ public class SyslogDaoTest {
   }
   
   SyslogDao createDao(String host, int port, String key, String username, String password) {
-    return new SyslogDao(mockUdpSyslogMessageSender, host, port, key, username, password);
+    return new SyslogDao(mockUdpSyslogMessageSender, host, port, key, username, password, new IndexerOptions());
+  }
+
+  // Test the TCP transport with octet-counting framing.
+  @Test
+  public void tcpBatchSend() throws Exception {
+    IndexerOptions options = new IndexerOptions();
+    options.setSyslogTransport(SyslogDao.Transport.TCP);
+    dao = new SyslogDao(mockUdpSyslogMessageSender, mockStreamSender, host, port, null, null, null, options);
+
+    dao.push(Arrays.asList(data, data));
+
+    verify(mockStreamSender, times(1)).send(messagesCaptor.capture());
+    assertEquals(2, messagesCaptor.getValue().size());
+    String message = messagesCaptor.getValue().get(0);
+    assertTrue(message, message.startsWith("<14>1 "));
+    assertTrue(message, message.endsWith(" " + host + " " + appname + " - - -  @cee: " + data));
+  }
+
+  // Events larger than the maximum message size are sent in parts.
+  @Test
+  public void oversizedEventIsSplit() throws Exception {
+    IndexerOptions options = new IndexerOptions();
+    options.setSyslogMaxMessageSize(512);
+    dao = new SyslogDao(mockUdpSyslogMessageSender, host, port, null, null, null, options);
+    String line = StringUtils.repeat("x", 200);
+
+    dao.push("{\"message\":[\"" + line + "\",\"" + line + "\",\"" + line + "\"]}");
+
+    // The message sent by before() and the three parts
+    ArgumentCaptor<String> messages = ArgumentCaptor.forClass(String.class);
+    verify(mockUdpSyslogMessageSender, times(1 + 3)).sendMessage(messages.capture());
+    assertEquals("{\"message\":[\"" + line + "\"],\"event_part\":3,\"event_parts\":3}",
+      messages.getValue().substring(SyslogDao.CEE_COOKIE.length()));
+  }
+
+  // Test the UDP_NIO transport against a local syslog server.
+  @Test
+  public void nioBatchSend() throws Exception {
+    DatagramChannel sink = DatagramChannel.open();
+    try {
+      sink.bind(new InetSocketAddress("127.0.0.1", 0));
+      IndexerOptions options = new IndexerOptions();
+      options.setSyslogTransport(SyslogDao.Transport.UDP_NIO);
+      dao = new SyslogDao(mockUdpSyslogMessageSender, "127.0.0.1", sink.socket().getLocalPort(), null, null, null, options);
+
+      dao.push(Arrays.asList(data, data));
+
+      for (int i = 0; i < 2; i++) {
+        ByteBuffer datagram = ByteBuffer.allocate(1024);
+        sink.receive(datagram);
+        String message = new String(datagram.array(), 0, datagram.position(), "UTF-8");
+        assertTrue(message, message.startsWith("<14>1 "));
+        assertTrue(message, message.endsWith(" 127.0.0.1 " + appname + " - - -  @cee: " + data));
+      }
+    } finally {
+      dao.datagramSender.close();
+      sink.close();
+    }
+  }
+
+  // Without a limit, events larger than a datagram are still split over UDP.
+  @Test
+  public void eventLargerThanDatagramIsSplit() throws Exception {
+    DatagramChannel sink = DatagramChannel.open();
+    try {
+      sink.socket().setReceiveBufferSize(1024 * 1024);
+      sink.bind(new InetSocketAddress("127.0.0.1", 0));
+      IndexerOptions options = new IndexerOptions();
+      options.setSyslogTransport(SyslogDao.Transport.UDP_NIO);
+      options.setSyslogMaxMessageSize(0);
+      dao = new SyslogDao(mockUdpSyslogMessageSender, "127.0.0.1", sink.socket().getLocalPort(), null, null, null, options);
+      List<String> lines = new ArrayList<String>();
+      for (int i = 0; i < 700; i++) {
+        lines.add(StringUtils.repeat("x", 100));
+      }
+      String event = "{\"message\":[\"" + StringUtils.join(lines, "\",\"") + "\"]}";
+      assertTrue("Event fits into a datagram", event.length() > 70000);
+
+      dao.push(event);
+
+      int parts = 0;
+      int datagrams = 0;
+      int received = 0;
+      do {
+        ByteBuffer datagram = ByteBuffer.allocate(DatagramSyslogSender.MAX_DATAGRAM_SIZE + 1);
+        sink.receive(datagram);
+        assertTrue("Datagram too large", datagram.position() <= DatagramSyslogSender.MAX_DATAGRAM_SIZE);
+        String message = new String(datagram.array(), 0, datagram.position(), "UTF-8");
+        JsonObject part = new JsonParser().parse(message.substring(message.indexOf(SyslogDao.CEE_COOKIE) + SyslogDao.CEE_COOKIE.length())).getAsJsonObject();
+        received += part.getAsJsonArray("message").size();
+        parts = part.get(EventSplitter.EVENT_PARTS).getAsInt();
+        datagrams++;
+      } while (received < lines.size());
+      assertEquals("Wrong number of lines", lines.size(), received);
+      assertTrue("Event was not split", parts > 1);
+      assertEquals("Wrong number of parts", parts, datagrams);
+    } finally {
+      dao.close();
+      sink.close();
+    }
+  }
+
+  // The threads share the channel of the UDP transport, which is closed along with the DAO.
+  @Test
+  public void udpChannelClosedWithDao() throws Exception {
+    DatagramSocket sink = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+    sink.setSoTimeout(5000);
+    try {
+      final SyslogDao udpDao = new SyslogDao("127.0.0.1", sink.getLocalPort(), null, null, null, new IndexerOptions());
+      final List<IOException> failures = Collections.synchronizedList(new ArrayList<IOException>());
+      Thread[] threads = new Thread[2];
+      for (int i = 0; i < threads.length; i++) {
+        final String event = "{\"thread\":" + i + "}";
+        threads[i] = new Thread() {
+          @Override
+          public void run() {
+            try {
+              udpDao.push(event);
+            } catch (IOException e) {
+              failures.add(e);
+            }
+          }
+        };
+        threads[i].start();
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      assertEquals("Failed pushes", Collections.emptyList(), failures);
+      Set<String> events = new HashSet<String>();
+      events.add(receiveEvent(sink));
+      events.add(receiveEvent(sink));
+      assertEquals("Wrong events", new HashSet<String>(Arrays.asList("{\"thread\":0}", "{\"thread\":1}")), events);
+      DatagramChannel channel = udpDao.datagramSender.getChannel();
+
+      udpDao.close();
+
+      assertFalse("Channel left open", channel.isOpen());
+      // A build that still uses the replaced DAO opens a channel for the push
+      udpDao.push("{\"thread\":2}");
+      assertEquals("Wrong event", "{\"thread\":2}", receiveEvent(sink));
+    } finally {
+      sink.close();
+    }
+  }
+
+  private static String receiveEvent(DatagramSocket sink) throws Exception {
+    DatagramPacket datagram = new DatagramPacket(new byte[1024], 1024);
+    sink.receive(datagram);
+    String message = new String(datagram.getData(), 0, datagram.getLength(), "UTF-8");
+    return message.substring(message.indexOf(SyslogDao.CEE_COOKIE) + SyslogDao.CEE_COOKIE.length());
   }
 }
@@ -0,0 +1,78 @@
+package jenkins.plugins.logstash.persistence;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.cloudbees.syslog.sender.UdpSyslogMessageSender;
+
+/**
+ * Compares the messages per second of the syslog-java-client UDP sender and of the NIO channel that the UDP and UDP_NIO
+ * transports use against a local UDP sink.
+ * Not run by the build; start it with the test classpath:
+ * <pre>java jenkins.plugins.logstash.persistence.SyslogSenderBenchmark [events] [batch size]</pre>
+ */
+public class SyslogSenderBenchmark {
+  public static void main(String[] args) throws Exception {
+    int events = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+    final DatagramChannel sink = DatagramChannel.open();
+    sink.socket().setReceiveBufferSize(4 * 1024 * 1024);
+    sink.bind(new InetSocketAddress("127.0.0.1", 0));
+    final AtomicLong received = new AtomicLong();
+    Thread receiver = new Thread("syslog sink") {
+      @Override
+      public void run() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(DatagramSyslogSender.MAX_DATAGRAM_SIZE);
+        try {
+          while (true) {
+            buffer.clear();
+            sink.receive(buffer);
+            received.incrementAndGet();
+          }
+        } catch (Exception e) {
+          // The sink was closed
+        }
+      }
+    };
+    receiver.setDaemon(true);
+    receiver.start();
+
+    String event = "{\"data\":{\"projectName\":\"benchmark\",\"url\":\"job/benchmark/1/\"},\"message\":[\""
+      + StringUtils.repeat("x", 120) + "\"],\"source\":\"jenkins\",\"@version\":1}";
+    List<String> batch = new ArrayList<String>(batchSize);
+    for (int i = 0; i < batchSize; i++) {
+      batch.add(event);
+    }
+    int port = sink.socket().getLocalPort();
+
+    for (SyslogDao.Transport transport : new SyslogDao.Transport[] { SyslogDao.Transport.UDP, SyslogDao.Transport.UDP_NIO }) {
+      IndexerOptions options = new IndexerOptions();
+      options.setSyslogTransport(transport);
+      UdpSyslogMessageSender udpSender = transport == SyslogDao.Transport.UDP ? new UdpSyslogMessageSender() : null;
+      SyslogDao dao = new SyslogDao(udpSender, "127.0.0.1", port, null, null, null, options);
+
+      // Warm up
+      for (int sent = 0; sent < events / 10; sent += batchSize) {
+        dao.push(batch);
+      }
+      Thread.sleep(200);
+      received.set(0);
+      long start = System.nanoTime();
+      for (int sent = 0; sent < events; sent += batchSize) {
+        dao.push(batch);
+      }
+      long elapsed = System.nanoTime() - start;
+      Thread.sleep(200);
+      System.out.printf("%-8s %,10.0f messages/s sent, %,d of %,d received%n",
+        transport, events * 1e9 / elapsed, received.get(), events);
+    }
+    sink.close();
+  }
+}